@@ -17,9 +17,17 @@
  */
 package uk.ac.ebi.ega.egafuse.config;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.asynchttpclient.AsyncHttpClient;
+import org.asynchttpclient.Dsl;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -28,18 +36,33 @@ import org.springframework.web.client.RestTemplate;
 
 import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.jackson2.JacksonFactory;
 
 import okhttp3.ConnectionPool;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import uk.ac.ebi.ega.egafuse.model.CacheKey;
 import uk.ac.ebi.ega.egafuse.runner.EgaFuseCommandLineRunner;
+import uk.ac.ebi.ega.egafuse.service.EgaChunk;
 import uk.ac.ebi.ega.egafuse.service.EgaChunkBufferService;
+import uk.ac.ebi.ega.egafuse.service.EgaChunkLoader;
+import uk.ac.ebi.ega.egafuse.service.EgaChunkPool;
+import uk.ac.ebi.ega.egafuse.service.EgaChecksumVerifier;
+import uk.ac.ebi.ega.egafuse.service.EgaCircuitBreaker;
+import uk.ac.ebi.ega.egafuse.service.EgaConcurrencyTuner;
 import uk.ac.ebi.ega.egafuse.service.EgaDatasetService;
 import uk.ac.ebi.ega.egafuse.service.EgaDirectory;
+import uk.ac.ebi.ega.egafuse.service.EgaDiskChunkCache;
+import uk.ac.ebi.ega.egafuse.service.EgaDownloadScheduler;
 import uk.ac.ebi.ega.egafuse.service.EgaFileService;
 import uk.ac.ebi.ega.egafuse.service.EgaFuse;
+import uk.ac.ebi.ega.egafuse.service.EgaHedgingPolicy;
+import uk.ac.ebi.ega.egafuse.service.EgaMetadataCache;
+import uk.ac.ebi.ega.egafuse.service.EgaMetadataSnapshot;
+import uk.ac.ebi.ega.egafuse.service.EgaMountOptions;
+import uk.ac.ebi.ega.egafuse.service.EgaRetryPolicy;
 import uk.ac.ebi.ega.egafuse.service.FileChunkDownloadService;
 import uk.ac.ebi.ega.egafuse.service.IEgaChunkBufferService;
 import uk.ac.ebi.ega.egafuse.service.IEgaDatasetService;
@@ -54,6 +77,15 @@ public class EgaFuseApplicationConfig {
 
     @Value("${api.chunksize}")
     private long chunkSize;
+
+    @Value("${metadata.ttl}")
+    private long metadataTtl;
+
+    @Value("${metadata.backoff.initial}")
+    private long metadataInitialBackoff;
+
+    @Value("${metadata.backoff}")
+    private long metadataMaxBackoff;
     
     public static boolean isTreeStructureEnable;
     
@@ -63,21 +95,101 @@ public class EgaFuseApplicationConfig {
     }
 
     @Bean
-    public AsyncLoadingCache<CacheKey, byte[]> cache(@Value("${maxCache}") int MAX_CACHE_SIZE, @Value("${connection}") int CONNECTION,
-            IFileChunkDownloadService fileChunkDownloadService) {
-        return  Caffeine.newBuilder()
+    public EgaConcurrencyTuner concurrencyTuner(@Value("${connection.min}") int MIN_CONNECTION,
+            @Value("${connection}") int CONNECTION, @Value("${connection.autotune}") boolean autotune) {
+        return new EgaConcurrencyTuner(MIN_CONNECTION, CONNECTION, autotune);
+    }
+
+    @Bean
+    public EgaCircuitBreaker circuitBreaker(@Value("${connection.breaker.failures}") int failureThreshold,
+            @Value("${connection.breaker.open}") long openMillis) {
+        return new EgaCircuitBreaker(failureThreshold, openMillis);
+    }
+
+    @Bean
+    public EgaDownloadScheduler downloadScheduler(@Value("${connection}") int CONNECTION,
+            @Value("${connectionPerFile}") int CONNECTION_PER_FILE,
+            @Value("${download.prefetchQueue}") int maxQueuedPrefetches, EgaConcurrencyTuner concurrencyTuner,
+            EgaCircuitBreaker circuitBreaker) {
+        return new EgaDownloadScheduler(CONNECTION, CONNECTION_PER_FILE, maxQueuedPrefetches, concurrencyTuner,
+                circuitBreaker);
+    }
+
+    @Bean
+    public EgaChunkPool chunkPool(@Value("${download.bufferPool}") int maxPooledBuffers,
+            @Value("${offHeapCache}") boolean offHeapCache) {
+        return new EgaChunkPool((int) chunkSize, maxPooledBuffers, offHeapCache);
+    }
+
+    @Bean
+    public EgaRetryPolicy retryPolicy(@Value("${connection.maxAttempts}") int maxAttempts,
+            @Value("${connection.backoff.initial}") long initialBackoff, @Value("${connection.backoff}") long maxBackoff,
+            @Value("${connection.retryBudget}") int retryBudget,
+            @Value("${connection.retryBudget.perSecond}") double retriesPerSecond) {
+        return new EgaRetryPolicy(maxAttempts, initialBackoff, maxBackoff, retryBudget, retriesPerSecond);
+    }
+
+    @Bean
+    public EgaChecksumVerifier checksumVerifier(@Value("${download.verify}") boolean verify) {
+        return new EgaChecksumVerifier(verify, chunkSize);
+    }
+
+    @Bean
+    public EgaChunkLoader chunkLoader(@Value("${diskCachePath}") String diskCachePath,
+            @Value("${diskCacheSize}") long diskCacheSize, IFileChunkDownloadService fileChunkDownloadService,
+            EgaDownloadScheduler downloadScheduler, EgaChunkPool chunkPool, EgaRetryPolicy retryPolicy,
+            EgaChecksumVerifier checksumVerifier, @Value("${download.async}") boolean asyncDownloads)
+            throws IOException {
+        if (diskCachePath.isEmpty()) {
+            return new EgaChunkLoader(fileChunkDownloadService, null, downloadScheduler, chunkPool, retryPolicy,
+                    checksumVerifier, asyncDownloads);
+        }
+        EgaDiskChunkCache diskChunkCache = new EgaDiskChunkCache(Paths.get(diskCachePath),
+                diskCacheSize * 1024 * 1024 * 1024);
+        checksumVerifier.setDiskChunkCache(diskChunkCache);
+        return new EgaChunkLoader(fileChunkDownloadService, diskChunkCache, downloadScheduler, chunkPool,
+                retryPolicy, checksumVerifier, asyncDownloads);
+    }
+
+    @Bean
+    public AsyncLoadingCache<CacheKey, EgaChunk> cache(@Value("${maxCache}") int MAX_CACHE_SIZE,
+            @Value("${connection}") int CONNECTION, EgaChunkLoader chunkLoader,
+            EgaChecksumVerifier checksumVerifier) {
+        // loads map disk cached chunks, so they get threads of their own rather than the common pool
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService cacheExecutor = Executors.newFixedThreadPool(CONNECTION, runnable -> {
+            Thread thread = new Thread(runnable, "chunk-cache-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // the budget is in bytes, a short last chunk of a file only counts for its actual length;
+        // the downloads themselves run on the scheduler, not on the cache executor;
+        // evicted chunks give their buffer back to the pool once nobody is reading them
+        AsyncLoadingCache<CacheKey, EgaChunk> cache = Caffeine.newBuilder()
+                        .executor(cacheExecutor)
                         .expireAfterWrite(5, TimeUnit.HOURS)
-                        .maximumSize(MAX_CACHE_SIZE)
-                        .executor(Executors.newFixedThreadPool(CONNECTION))
-                        .buildAsync(fileChunkDownloadService::downloadChunk);
+                        .maximumWeight(MAX_CACHE_SIZE * chunkSize)
+                        .weigher((CacheKey cacheKey, EgaChunk chunk) -> chunk.getLength())
+                        .removalListener((CacheKey cacheKey, EgaChunk chunk, RemovalCause cause) -> {
+                            if (chunk != null) {
+                                chunk.release();
+                            }
+                        })
+                        .buildAsync(chunkLoader);
+        chunkLoader.setCacheEntries(cache.asMap());
+        checksumVerifier.setCacheEntries(cache.asMap());
+        return cache;
     }
 
     @Bean
     public OkHttpClient OkHttpClientFactory(@Value("${connection.request.timeout}") int DEFAULT_REQUEST_TIMEOUT,
             @Value("${connection.timeout}") int DEFAULT_CONNECTION_TIMEOUT,
             @Value("${connection.alive.timeout}") int DEFAULT_KEEP_ALIVE_TIMEOUT,
-            @Value("${connection}") int CONNECTION) {
+            @Value("${connection}") int CONNECTION, @Value("${connection.http2}") boolean http2) {
         OkHttpClient.Builder builder = new OkHttpClient.Builder();
+        // with HTTP/2 the concurrent requests share few connections as streams, servers without it get HTTP/1.1
+        builder.protocols(http2 ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)
+                : Collections.singletonList(Protocol.HTTP_1_1));
         ConnectionPool connectionPool = new ConnectionPool(CONNECTION, DEFAULT_KEEP_ALIVE_TIMEOUT, TimeUnit.MINUTES);
         return builder.connectTimeout(DEFAULT_CONNECTION_TIMEOUT, TimeUnit.MINUTES)
                 .readTimeout(DEFAULT_REQUEST_TIMEOUT, TimeUnit.MINUTES).connectionPool(connectionPool).build();
@@ -93,36 +205,88 @@ public class EgaFuseApplicationConfig {
     @Bean
     public Token token(@Value("${cred.username}") String username, @Value("${cred.password}") String password,
             @Value("${ega.userId}") String egaUserId, @Value("${ega.userSecret}") String egaUserSecret,
-            @Value("${ega.userGrant}") String egaUserGrant, @Value("${aai.url}") String aaiUrl) {
+            @Value("${ega.userGrant}") String egaUserGrant, @Value("${aai.url}") String aaiUrl,
+            @Value("${token.refreshBeforeExpiry}") long refreshBeforeExpiry) {
         return new Token(new NetHttpTransport(), new JacksonFactory(), username, password, egaUserId, egaUserSecret,
-                egaUserGrant, aaiUrl);
+                egaUserGrant, aaiUrl, refreshBeforeExpiry);
     }
 
     @Bean
-    public IFileChunkDownloadService initEgaRetryService(OkHttpClient okHttpClient, Token token) {
-        return new FileChunkDownloadService(okHttpClient, appUrl, token);
+    public EgaHedgingPolicy hedgingPolicy(@Value("${download.hedge}") boolean hedge,
+            @Value("${download.hedge.percentile}") double percentile,
+            @Value("${download.hedge.maxExtraTraffic}") double maxExtraTraffic,
+            @Value("${download.hedge.maxConcurrent}") int maxConcurrentHedges) {
+        return new EgaHedgingPolicy(hedge, percentile, maxExtraTraffic, maxConcurrentHedges);
     }
 
     @Bean
-    public IEgaFileService initEgaFileService(OkHttpClient okHttpClient, Token token, IEgaChunkBufferService egaChunkBufferService) {
-        return new EgaFileService(okHttpClient, appUrl, token, egaChunkBufferService);
+    public IFileChunkDownloadService initEgaRetryService(OkHttpClient okHttpClient, Token token,
+            EgaConcurrencyTuner concurrencyTuner, EgaCircuitBreaker circuitBreaker, EgaHedgingPolicy hedgingPolicy,
+            @Value("${download.async}") boolean asyncDownloads,
+            @Value("${connection.request.timeout}") int DEFAULT_REQUEST_TIMEOUT,
+            @Value("${connection.timeout}") int DEFAULT_CONNECTION_TIMEOUT,
+            @Value("${connection.alive.timeout}") int DEFAULT_KEEP_ALIVE_TIMEOUT,
+            @Value("${connection}") int CONNECTION) {
+        AsyncHttpClient asyncHttpClient = null;
+        if (asyncDownloads) {
+            // a few event loop threads serve all the connections, a request only times out when it stops sending
+            AtomicInteger threadCount = new AtomicInteger();
+            asyncHttpClient = Dsl.asyncHttpClient(Dsl.config()
+                    .setConnectTimeout((int) TimeUnit.MINUTES.toMillis(DEFAULT_CONNECTION_TIMEOUT))
+                    .setReadTimeout((int) TimeUnit.MINUTES.toMillis(DEFAULT_REQUEST_TIMEOUT))
+                    .setRequestTimeout(-1)
+                    .setPooledConnectionIdleTimeout((int) TimeUnit.MINUTES.toMillis(DEFAULT_KEEP_ALIVE_TIMEOUT))
+                    .setMaxConnections(CONNECTION)
+                    .setThreadFactory(runnable -> {
+                        Thread thread = new Thread(runnable, "chunk-download-io-" + threadCount.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }));
+        }
+        return new FileChunkDownloadService(okHttpClient, asyncHttpClient, appUrl, token, concurrencyTuner,
+                circuitBreaker, hedgingPolicy);
+    }
+
+    @Bean
+    public EgaFileService initEgaFileService(OkHttpClient okHttpClient, Token token, IEgaChunkBufferService egaChunkBufferService,
+            EgaChecksumVerifier checksumVerifier) {
+        return new EgaFileService(okHttpClient, appUrl, token, egaChunkBufferService, checksumVerifier,
+                new EgaMetadataCache<>(metadataTtl, metadataInitialBackoff, metadataMaxBackoff));
     }
     
     @Bean
-    public IEgaChunkBufferService egaChunkBufferService(@Value("${connectionPerFile}") int cachePrefetch, AsyncLoadingCache<CacheKey, byte[]> cache) {
-        return new EgaChunkBufferService(chunkSize, cachePrefetch, cache);
+    public IEgaChunkBufferService egaChunkBufferService(@Value("${readahead}") int maxReadahead, AsyncLoadingCache<CacheKey, EgaChunk> cache,
+            EgaChunkLoader chunkLoader, EgaDownloadScheduler downloadScheduler, EgaChecksumVerifier checksumVerifier) {
+        return new EgaChunkBufferService(chunkSize, maxReadahead, cache, chunkLoader, downloadScheduler,
+                checksumVerifier);
+    }
+
+    @Bean
+    public IEgaDatasetService initEgaDatasetService(OkHttpClient okHttpClient, Token token, EgaFileService egaFileService,
+            @Value("${metadataSnapshotPath}") String metadataSnapshotPath) {
+        EgaDatasetService egaDatasetService = new EgaDatasetService(okHttpClient, appUrl, token, egaFileService,
+                new EgaMetadataCache<>(metadataTtl, metadataInitialBackoff, metadataMaxBackoff));
+        if (!metadataSnapshotPath.isEmpty()) {
+            new EgaMetadataSnapshot(Paths.get(metadataSnapshotPath)).attach(egaDatasetService, egaFileService);
+        }
+        return egaDatasetService;
     }
 
     @Bean
-    public IEgaDatasetService initEgaDatasetService(OkHttpClient okHttpClient, Token token, IEgaFileService egaFileService) {
-        return new EgaDatasetService(okHttpClient, appUrl, token, egaFileService);
+    public EgaMountOptions mountOptions(@Value("${fuse.attrTimeout}") double attrTimeout,
+            @Value("${fuse.entryTimeout}") double entryTimeout,
+            @Value("${fuse.negativeTimeout}") double negativeTimeout,
+            @Value("${fuse.kernelCache}") boolean kernelCache, @Value("${fuse.maxRead}") int maxRead,
+            @Value("${fuse.maxReadahead}") int maxReadahead, @Value("${fuse.options}") String extraOptions) {
+        return new EgaMountOptions(attrTimeout, entryTimeout, negativeTimeout, kernelCache, maxRead, maxReadahead,
+                extraOptions);
     }
 
     @Bean
     public EgaFuse initEgaFuse(@Value("${mountPath}") String mountPath, IEgaDatasetService egaDatasetService,
-            IEgaFileService egaFileService) {
+            IEgaFileService egaFileService, EgaMountOptions mountOptions) {
         EgaDirectory egaDirectory = new EgaDirectory("Datasets", egaDatasetService, egaFileService);
-        return new EgaFuse(egaDirectory, mountPath);
+        return new EgaFuse(egaDirectory, mountPath, mountOptions);
     }
 
     @Bean
@@ -18,7 +18,18 @@
 package uk.ac.ebi.ega.egafuse.exception;
 
 public class ClientProtocolException extends Exception {
+    private final int status;
+
     public ClientProtocolException(final String message) {
+        this(message, 0);
+    }
+
+    public ClientProtocolException(final String message, final int status) {
         super(message);
+        this.status = status;
+    }
+
+    public int getStatus() {
+        return status;
     }
 }
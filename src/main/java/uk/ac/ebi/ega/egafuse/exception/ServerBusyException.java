@@ -0,0 +1,38 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.exception;
+
+/**
+ * The server refused a request because it is overloaded, 429 or 503.
+ */
+public class ServerBusyException extends ClientProtocolException {
+    private final long retryAfterMillis;
+
+    public ServerBusyException(final String message, final int status, final long retryAfterMillis) {
+        super(message, status);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Returns how long the server asked clients to wait, or -1 when it did not
+     * say.
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -22,9 +22,21 @@ import java.nio.file.Path;
 public class CliConfigurationValues {
     private boolean isTreeStructureEnable;
     private int connection;
+    private int minConnection;
+    private boolean isAutotuneEnable;
+    private boolean isHttp2Enable;
+    private boolean isHedgeEnable;
+    private boolean isAsyncDownloadEnable;
+    private boolean isVerifyEnable;
     private int connectionPerFile;
+    private int readahead;
     private int maxCache;
+    private boolean isOffHeapCacheEnable;
+    private Path diskCachePath;
+    private long diskCacheSize;
+    private Path metadataSnapshotPath;
     private Path mountPath;
+    private String mountOptions;
     private Credential credential;
 
     public int getConnection() {
@@ -35,6 +47,54 @@ public class CliConfigurationValues {
         this.connection = connection;
     }
 
+    public int getMinConnection() {
+        return minConnection;
+    }
+
+    public void setMinConnection(int minConnection) {
+        this.minConnection = minConnection;
+    }
+
+    public boolean isAutotuneEnable() {
+        return isAutotuneEnable;
+    }
+
+    public void setAutotuneEnable(boolean isAutotuneEnable) {
+        this.isAutotuneEnable = isAutotuneEnable;
+    }
+
+    public boolean isHttp2Enable() {
+        return isHttp2Enable;
+    }
+
+    public void setHttp2Enable(boolean isHttp2Enable) {
+        this.isHttp2Enable = isHttp2Enable;
+    }
+
+    public boolean isHedgeEnable() {
+        return isHedgeEnable;
+    }
+
+    public void setHedgeEnable(boolean isHedgeEnable) {
+        this.isHedgeEnable = isHedgeEnable;
+    }
+
+    public boolean isAsyncDownloadEnable() {
+        return isAsyncDownloadEnable;
+    }
+
+    public void setAsyncDownloadEnable(boolean isAsyncDownloadEnable) {
+        this.isAsyncDownloadEnable = isAsyncDownloadEnable;
+    }
+
+    public boolean isVerifyEnable() {
+        return isVerifyEnable;
+    }
+
+    public void setVerifyEnable(boolean isVerifyEnable) {
+        this.isVerifyEnable = isVerifyEnable;
+    }
+
     public int getConnectionPerFile() {
         return connectionPerFile;
     }
@@ -43,6 +103,14 @@ public class CliConfigurationValues {
         this.connectionPerFile = connectionPerFile;
     }
 
+    public int getReadahead() {
+        return readahead;
+    }
+
+    public void setReadahead(int readahead) {
+        this.readahead = readahead;
+    }
+
     public int getMaxCache() {
         return maxCache;
     }
@@ -51,6 +119,38 @@ public class CliConfigurationValues {
         this.maxCache = maxCache;
     }
 
+    public boolean isOffHeapCacheEnable() {
+        return isOffHeapCacheEnable;
+    }
+
+    public void setOffHeapCacheEnable(boolean isOffHeapCacheEnable) {
+        this.isOffHeapCacheEnable = isOffHeapCacheEnable;
+    }
+
+    public Path getDiskCachePath() {
+        return diskCachePath;
+    }
+
+    public void setDiskCachePath(Path diskCachePath) {
+        this.diskCachePath = diskCachePath;
+    }
+
+    public long getDiskCacheSize() {
+        return diskCacheSize;
+    }
+
+    public void setDiskCacheSize(long diskCacheSize) {
+        this.diskCacheSize = diskCacheSize;
+    }
+
+    public Path getMetadataSnapshotPath() {
+        return metadataSnapshotPath;
+    }
+
+    public void setMetadataSnapshotPath(Path metadataSnapshotPath) {
+        this.metadataSnapshotPath = metadataSnapshotPath;
+    }
+
     public Path getMountPath() {
         return mountPath;
     }
@@ -59,6 +159,14 @@ public class CliConfigurationValues {
         this.mountPath = mountPath;
     }
 
+    public String getMountOptions() {
+        return mountOptions;
+    }
+
+    public void setMountOptions(String mountOptions) {
+        this.mountOptions = mountOptions;
+    }
+
     public Credential getCredential() {
         return credential;
     }
@@ -77,8 +185,15 @@ public class CliConfigurationValues {
 
     @Override
     public String toString() {
-        return "CliConfigurationValues [credential=" + credential + ", maxCache=" + maxCache + ", connection="
-                + connection + ", connectionPerFile=" + connectionPerFile + ", mountPath=" + mountPath
+        return "CliConfigurationValues [credential=" + credential + ", maxCache=" + maxCache
+                + ", isOffHeapCacheEnable=" + isOffHeapCacheEnable + ", diskCachePath=" + diskCachePath
+                + ", diskCacheSize=" + diskCacheSize + ", metadataSnapshotPath=" + metadataSnapshotPath
+                + ", connection=" + connection + ", minConnection=" + minConnection
+                + ", isAutotuneEnable=" + isAutotuneEnable + ", isHttp2Enable=" + isHttp2Enable
+                + ", isHedgeEnable=" + isHedgeEnable + ", isAsyncDownloadEnable=" + isAsyncDownloadEnable
+                + ", isVerifyEnable=" + isVerifyEnable
+                + ", connectionPerFile=" + connectionPerFile + ", readahead=" + readahead + ", mountPath=" + mountPath
+                + ", mountOptions=" + mountOptions
                 + ", isTreeStructureEnable=" + isTreeStructureEnable + "]";
     }
 }
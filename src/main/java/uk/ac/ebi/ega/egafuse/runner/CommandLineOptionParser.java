@@ -56,7 +56,30 @@ public class CommandLineOptionParser {
                             + cliConfigurationValues.getConnection());
         }
 
+        cliConfigurationValues.setMinConnection(Integer.valueOf(optionSet.valueOf("cmin").toString()));
+        cliConfigurationValues.setAutotuneEnable(ENABLE.equalsIgnoreCase(optionSet.valueOf("autotune").toString()));
+        if (cliConfigurationValues.getMinConnection() > cliConfigurationValues.getConnection()) {
+            throw new IllegalArgumentException("cmin(minimum connections)=" + cliConfigurationValues.getMinConnection()
+                    + " must be less than or equal to the c(connections)=" + cliConfigurationValues.getConnection());
+        }
+
+        cliConfigurationValues.setHttp2Enable(ENABLE.equalsIgnoreCase(optionSet.valueOf("http2").toString()));
+        cliConfigurationValues.setHedgeEnable(ENABLE.equalsIgnoreCase(optionSet.valueOf("hedge").toString()));
+        cliConfigurationValues
+                .setAsyncDownloadEnable(ENABLE.equalsIgnoreCase(optionSet.valueOf("async").toString()));
+        cliConfigurationValues.setVerifyEnable(ENABLE.equalsIgnoreCase(optionSet.valueOf("verify").toString()));
+        cliConfigurationValues.setReadahead(Integer.valueOf(optionSet.valueOf("ra").toString()));
         cliConfigurationValues.setMaxCache(Integer.valueOf(optionSet.valueOf("cache").toString()));
+        cliConfigurationValues
+                .setOffHeapCacheEnable(ENABLE.equalsIgnoreCase(optionSet.valueOf("offheap").toString()));
+
+        if (optionSet.has("dcache")) {
+            cliConfigurationValues.setDiskCachePath((Path) optionSet.valueOf("dcache"));
+        }
+        cliConfigurationValues.setDiskCacheSize(Long.valueOf(optionSet.valueOf("dcachesize").toString()));
+        if (optionSet.has("snapshot")) {
+            cliConfigurationValues.setMetadataSnapshotPath((Path) optionSet.valueOf("snapshot"));
+        }
 
         if (optionSet.has("cf")) {
             cliConfigurationValues.setCredential(readCredentialFile((Path) optionSet.valueOf("cf")));
@@ -70,6 +93,7 @@ public class CommandLineOptionParser {
                     .concat(" can't be used as mount point. Ensure that the directory path should exist."));
         }
         cliConfigurationValues.setMountPath(mntPath);
+        cliConfigurationValues.setMountOptions(optionSet.valueOf("o").toString());
         cliConfigurationValues
                 .setTreeStructureEnable(DISABLE.equalsIgnoreCase(optionSet.valueOf("t").toString()) ? false : true);
 
@@ -83,11 +107,28 @@ public class CommandLineOptionParser {
                 "credential file path containing username & password, e.g. \n username:user1 \n  password:pass")
                 .withRequiredArg().withValuesConvertedBy(new PathConverter());
         parser.accepts("c", "connections").withRequiredArg().ofType(Integer.class).defaultsTo(4);
+        parser.accepts("cmin", "minimum connections when auto-tuning").withRequiredArg().ofType(Integer.class)
+                .defaultsTo(1);
+        parser.accepts("autotune", "adjust the number of connections to the observed throughput").withRequiredArg()
+                .defaultsTo(DISABLE);
+        parser.accepts("http2", "multiplex requests over HTTP/2 connections").withRequiredArg().defaultsTo(DISABLE);
+        parser.accepts("hedge", "send a duplicate request for downloads much slower than usual").withRequiredArg()
+                .defaultsTo(DISABLE);
+        parser.accepts("async", "download without a thread per connection").withRequiredArg().defaultsTo(DISABLE);
+        parser.accepts("verify", "verify files against their checksum while they are read").withRequiredArg()
+                .defaultsTo(DISABLE);
         parser.accepts("cpf", "connections per file").withRequiredArg().ofType(Integer.class).defaultsTo(2);
+        parser.accepts("ra", "max readahead in chunks").withRequiredArg().ofType(Integer.class).defaultsTo(8);
         parser.accepts("t", "tree structure").withRequiredArg().defaultsTo(ENABLE);
         parser.accepts("cache", "max cache").withRequiredArg().ofType(Integer.class).defaultsTo(100);
+        parser.accepts("offheap", "keep cached chunks in off-heap memory").withRequiredArg().defaultsTo(DISABLE);
+        parser.accepts("dcache", "disk cache directory").withRequiredArg().withValuesConvertedBy(new PathConverter());
+        parser.accepts("dcachesize", "max disk cache size in GB").withRequiredArg().ofType(Long.class).defaultsTo(10L);
+        parser.accepts("snapshot", "file keeping the dataset and file listings across mounts").withRequiredArg()
+                .withValuesConvertedBy(new PathConverter());
         parser.accepts("m", "mount path").withRequiredArg().withValuesConvertedBy(new PathConverter())
                 .defaultsTo(Paths.get("/tmp/mnt"));
+        parser.accepts("o", "additional FUSE mount options, comma separated").withRequiredArg().defaultsTo("");
         parser.accepts(OPTIONS_HELP, "Use this option to get help");
         parser.allowsUnrecognizedOptions();
         return parser;
@@ -42,12 +42,38 @@ public final class CommandLineOptionPropertySource extends PropertySource<Option
             return cliConfigurationValues.getCredential().getPassword();
         case "maxCache":
             return String.valueOf(cliConfigurationValues.getMaxCache());
+        case "offHeapCache":
+            return String.valueOf(cliConfigurationValues.isOffHeapCacheEnable());
+        case "diskCachePath":
+            return cliConfigurationValues.getDiskCachePath() == null ? ""
+                    : cliConfigurationValues.getDiskCachePath().toString();
+        case "diskCacheSize":
+            return String.valueOf(cliConfigurationValues.getDiskCacheSize());
+        case "metadataSnapshotPath":
+            return cliConfigurationValues.getMetadataSnapshotPath() == null ? ""
+                    : cliConfigurationValues.getMetadataSnapshotPath().toString();
         case "connection":
             return String.valueOf(cliConfigurationValues.getConnection());
+        case "connection.min":
+            return String.valueOf(cliConfigurationValues.getMinConnection());
+        case "connection.autotune":
+            return String.valueOf(cliConfigurationValues.isAutotuneEnable());
+        case "connection.http2":
+            return String.valueOf(cliConfigurationValues.isHttp2Enable());
+        case "download.hedge":
+            return String.valueOf(cliConfigurationValues.isHedgeEnable());
+        case "download.async":
+            return String.valueOf(cliConfigurationValues.isAsyncDownloadEnable());
+        case "download.verify":
+            return String.valueOf(cliConfigurationValues.isVerifyEnable());
         case "connectionPerFile":
             return String.valueOf(cliConfigurationValues.getConnectionPerFile());            
+        case "readahead":
+            return String.valueOf(cliConfigurationValues.getReadahead());
         case "mountPath":
             return cliConfigurationValues.getMountPath().toString();
+        case "fuse.options":
+            return cliConfigurationValues.getMountOptions();
         case "tree":
             return cliConfigurationValues.isTreeStructureEnable();            
         default:
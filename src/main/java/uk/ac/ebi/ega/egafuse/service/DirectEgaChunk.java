@@ -0,0 +1,91 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+
+/**
+ * Chunk held outside the Java heap, so that large caches do not put pressure on
+ * the garbage collector. Reads are served by copying native memory directly
+ * into the FUSE buffer.
+ */
+public class DirectEgaChunk extends EgaChunk {
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<byte[]> TRANSFER_BUFFER = ThreadLocal
+            .withInitial(() -> new byte[TRANSFER_BUFFER_SIZE]);
+    private final ByteBuffer data;
+    private final Pointer pointer;
+    private final EgaChunkPool pool;
+
+    public DirectEgaChunk(ByteBuffer data) {
+        this(data, true);
+    }
+
+    public DirectEgaChunk(ByteBuffer data, boolean filled) {
+        this(data, filled, null);
+    }
+
+    public DirectEgaChunk(ByteBuffer data, boolean filled, EgaChunkPool pool) {
+        super(data.capacity(), filled);
+        this.data = data;
+        this.pool = pool;
+        this.pointer = Pointer.wrap(Runtime.getSystemRuntime(), data);
+    }
+
+    @Override
+    protected void recycle() {
+        if (pool != null) {
+            pool.recycle(data);
+        }
+    }
+
+    @Override
+    public ByteBuffer asByteBuffer() {
+        return data.asReadOnlyBuffer();
+    }
+
+    @Override
+    public void copyTo(Pointer buffer, long bufferOffset, int chunkOffset, int bytesToCopy) {
+        buffer.transferFrom(bufferOffset, pointer, chunkOffset, bytesToCopy);
+    }
+
+    @Override
+    protected int read(InputStream inputStream, int position, int maxBytes) throws IOException {
+        byte[] transferBuffer = TRANSFER_BUFFER.get();
+        int bytesRead = inputStream.read(transferBuffer, 0, Math.min(maxBytes, transferBuffer.length));
+        if (bytesRead > 0) {
+            ByteBuffer target = data.duplicate();
+            ((Buffer) target).position(position);
+            target.put(transferBuffer, 0, bytesRead);
+        }
+        return bytesRead;
+    }
+
+    @Override
+    protected void write(ByteBuffer bytes, int position) {
+        ByteBuffer target = data.duplicate();
+        ((Buffer) target).position(position);
+        target.put(bytes);
+    }
+}
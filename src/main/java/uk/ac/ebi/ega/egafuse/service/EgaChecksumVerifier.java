@@ -0,0 +1,296 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ebi.ega.egafuse.model.CacheKey;
+import uk.ac.ebi.ega.egafuse.model.File;
+
+/**
+ * Checks whole files against the unencrypted checksum from their metadata as
+ * they pass through the cache. Each file is digested in order on a single
+ * background thread, a chunk is taken from the cache once it is complete and
+ * all chunks before it have been digested, so a sequential first read verifies
+ * the file without reading it again. Chunks evicted before their turn hold the
+ * file back until they are read again.
+ * <p>
+ * The read that completes a file waits for the verdict, so a mismatch fails
+ * that read and every read of the file after it. The chunks of a file that
+ * failed are dropped from the memory and disk caches, and the file is verified
+ * afresh once it is read again from its start.
+ */
+public class EgaChecksumVerifier {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EgaChecksumVerifier.class);
+    private final boolean enabled;
+    private final long chunkSize;
+    private final Executor executor;
+    private final Map<String, FileDigest> files = new ConcurrentHashMap<>();
+    private ConcurrentMap<CacheKey, CompletableFuture<EgaChunk>> cacheEntries;
+    private IEgaDiskChunkCache diskChunkCache;
+
+    public enum Status {
+        UNKNOWN, PENDING, VERIFIED, FAILED
+    }
+
+    public EgaChecksumVerifier(boolean enabled, long chunkSize) {
+        this(enabled, chunkSize, Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "checksum-verifier");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    EgaChecksumVerifier(boolean enabled, long chunkSize, Executor executor) {
+        this.enabled = enabled;
+        this.chunkSize = chunkSize;
+        this.executor = executor;
+    }
+
+    /**
+     * Entries of the cache the chunks are taken from.
+     */
+    public void setCacheEntries(ConcurrentMap<CacheKey, CompletableFuture<EgaChunk>> cacheEntries) {
+        this.cacheEntries = cacheEntries;
+    }
+
+    /**
+     * Disk cache the chunks of a file that failed are removed from as well.
+     */
+    public void setDiskChunkCache(IEgaDiskChunkCache diskChunkCache) {
+        this.diskChunkCache = diskChunkCache;
+    }
+
+    /**
+     * Files without a checksum or with a checksum type the JVM has no digest for
+     * are not verified.
+     */
+    public void register(File file) {
+        if (!enabled || file.getUnencryptedChecksum() == null || file.getUnencryptedChecksumType() == null
+                || files.containsKey(file.getFileId())) {
+            return;
+        }
+        String algorithm = toAlgorithm(file.getUnencryptedChecksumType());
+        try {
+            MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            LOGGER.warn("Checksum type {} of file {} is not supported, the file is not verified",
+                    file.getUnencryptedChecksumType(), file.getFileId());
+            return;
+        }
+        files.putIfAbsent(file.getFileId(),
+                new FileDigest(file.getFileId(), file.getFileSize(), file.getUnencryptedChecksum(), algorithm));
+    }
+
+    /**
+     * Called when a chunk has been completely loaded, the digest of its file
+     * catches up in the background as far as the cache allows.
+     */
+    public void onChunkLoaded(CacheKey cacheKey) {
+        FileDigest fileDigest = files.get(cacheKey.getFileId());
+        if (fileDigest == null) {
+            return;
+        }
+        if (fileDigest.status == Status.PENDING && cacheKey.getStartCoordinate() >= fileDigest.position) {
+            schedule(fileDigest);
+        }
+    }
+
+    /**
+     * Waits until the digest has taken in every chunk the cache holds, returns
+     * the verdict or {@link Status#PENDING} when an earlier chunk is missing
+     * from the cache.
+     */
+    public Status awaitVerdict(String fileId) throws InterruptedException {
+        FileDigest fileDigest = files.get(fileId);
+        if (fileDigest == null) {
+            return Status.UNKNOWN;
+        }
+        if (fileDigest.status == Status.PENDING) {
+            schedule(fileDigest);
+        }
+        synchronized (fileDigest) {
+            while (fileDigest.status == Status.PENDING && (fileDigest.scheduled || fileDigest.running)) {
+                fileDigest.wait();
+            }
+            return fileDigest.status;
+        }
+    }
+
+    public Status getStatus(String fileId) {
+        FileDigest fileDigest = files.get(fileId);
+        return fileDigest == null ? Status.UNKNOWN : fileDigest.status;
+    }
+
+    public boolean isFailed(String fileId) {
+        return getStatus(fileId) == Status.FAILED;
+    }
+
+    /**
+     * Starts verifying a file that failed afresh, its chunks are downloaded
+     * again as they are read.
+     */
+    public void restart(String fileId) {
+        FileDigest fileDigest = files.get(fileId);
+        if (fileDigest != null && fileDigest.status == Status.FAILED) {
+            fileDigest.reset();
+        }
+    }
+
+    private void schedule(FileDigest fileDigest) {
+        synchronized (fileDigest) {
+            if (fileDigest.scheduled) {
+                return;
+            }
+            fileDigest.scheduled = true;
+        }
+        executor.execute(() -> {
+            synchronized (fileDigest) {
+                fileDigest.scheduled = false;
+                fileDigest.running = true;
+            }
+            try {
+                advance(fileDigest);
+            } finally {
+                synchronized (fileDigest) {
+                    fileDigest.running = false;
+                    fileDigest.notifyAll();
+                }
+            }
+        });
+    }
+
+    private void advance(FileDigest fileDigest) {
+        while (fileDigest.status == Status.PENDING && cacheEntries != null) {
+            long length = Math.min(chunkSize, fileDigest.fileSize - fileDigest.position);
+            CompletableFuture<EgaChunk> entry = cacheEntries
+                    .get(new CacheKey(fileDigest.position, length, fileDigest.fileId));
+            EgaChunk chunk = entry == null ? null : entry.getNow(null);
+            if (chunk == null || !chunk.retain()) {
+                return;
+            }
+            try {
+                if (!chunk.isComplete()) {
+                    return;
+                }
+                ByteBuffer bytes = chunk.asByteBuffer();
+                bytes.limit(chunk.getLength());
+                fileDigest.update(bytes);
+            } finally {
+                chunk.release();
+            }
+        }
+        if (fileDigest.status == Status.FAILED) {
+            discardChunks(fileDigest);
+        }
+    }
+
+    /**
+     * Drops the chunks of a file that failed, so that reading it again
+     * downloads it again rather than serving the same bytes.
+     */
+    private void discardChunks(FileDigest fileDigest) {
+        for (long position = 0; position < fileDigest.fileSize; position += chunkSize) {
+            CacheKey cacheKey = new CacheKey(position, Math.min(chunkSize, fileDigest.fileSize - position),
+                    fileDigest.fileId);
+            if (cacheEntries != null) {
+                cacheEntries.remove(cacheKey);
+            }
+            if (diskChunkCache != null) {
+                diskChunkCache.remove(cacheKey);
+            }
+        }
+    }
+
+    static String toAlgorithm(String checksumType) {
+        String algorithm = checksumType.trim().toUpperCase();
+        if (algorithm.startsWith("SHA") && !algorithm.startsWith("SHA-") && algorithm.length() > 3) {
+            algorithm = "SHA-" + algorithm.substring(3);
+        }
+        return algorithm;
+    }
+
+    private static final class FileDigest {
+        private final String fileId;
+        private final long fileSize;
+        private final String expectedChecksum;
+        private final String algorithm;
+        private boolean scheduled;
+        private boolean running;
+        private MessageDigest digest;
+        private volatile long position;
+        private volatile Status status = Status.PENDING;
+
+        private FileDigest(String fileId, long fileSize, String expectedChecksum, String algorithm) {
+            this.fileId = fileId;
+            this.fileSize = fileSize;
+            this.expectedChecksum = expectedChecksum;
+            this.algorithm = algorithm;
+        }
+
+        private synchronized void reset() {
+            digest = null;
+            position = 0;
+            status = Status.PENDING;
+        }
+
+        private void update(ByteBuffer bytes) {
+            if (digest == null) {
+                try {
+                    digest = MessageDigest.getInstance(algorithm);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            position += bytes.remaining();
+            digest.update(bytes);
+            if (position < fileSize) {
+                return;
+            }
+            String checksum = toHex(digest.digest());
+            digest = null;
+            if (checksum.equalsIgnoreCase(expectedChecksum)) {
+                status = Status.VERIFIED;
+                LOGGER.info("File {} verified, {} {}", fileId, algorithm, checksum);
+            } else {
+                status = Status.FAILED;
+                LOGGER.error("File {} failed verification, {} is {} but should be {}", fileId, algorithm, checksum,
+                        expectedChecksum);
+            }
+        }
+
+        private static String toHex(byte[] bytes) {
+            StringBuilder hex = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        }
+    }
+}
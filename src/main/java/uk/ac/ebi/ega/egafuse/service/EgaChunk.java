@@ -0,0 +1,232 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jnr.ffi.Pointer;
+
+/**
+ * Chunk data. A chunk can be handed out while it is still being downloaded,
+ * readers wait in {@link #awaitAvailable(int)} only until the bytes they need
+ * have arrived.
+ * <p>
+ * A chunk starts with one reference, owned by the cache. Anything else using
+ * the data must {@link #retain()} it first and {@link #release()} it when done;
+ * once the last reference is gone a pooled buffer goes back to its pool and the
+ * chunk can not be retained again.
+ * <p>
+ * A hedged download may fill the same chunk as the download it duplicates.
+ * Whichever is ahead makes more of the chunk available, the one behind skips
+ * the bytes already published instead of writing them again. The two can
+ * still overlap within a single read, that write only puts the same bytes of
+ * the same file over bytes a reader may already see.
+ */
+public abstract class EgaChunk {
+    private final int length;
+    private volatile int available;
+    private volatile IOException failure;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private int waiters;
+
+    protected EgaChunk(int length, boolean filled) {
+        this.length = length;
+        this.available = filled ? length : 0;
+    }
+
+    public static EgaChunk allocate(int length, boolean offHeap) {
+        return offHeap ? new DirectEgaChunk(ByteBuffer.allocateDirect(length), false)
+                : new HeapEgaChunk(new byte[length], false);
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getAvailable() {
+        return available;
+    }
+
+    public boolean isComplete() {
+        return available == length;
+    }
+
+    public void fill(InputStream inputStream) throws IOException {
+        fill(inputStream, 0);
+    }
+
+    /**
+     * Fills the chunk from {@code position} on, the stream must start with the
+     * byte at that position.
+     */
+    public void fill(InputStream inputStream, int position) throws IOException {
+        while (position < length) {
+            if (failure != null) {
+                throw new CancellationException("Chunk download was abandoned after " + position + " bytes");
+            }
+            int ahead = available - position;
+            if (ahead > 0) {
+                position += skip(inputStream, ahead);
+                continue;
+            }
+            int bytesRead = read(inputStream, position, length - position);
+            if (bytesRead < 0) {
+                throw new EOFException("Chunk ended after " + position + " of " + length + " bytes");
+            }
+            position += bytesRead;
+            publish(position);
+        }
+    }
+
+    /**
+     * Fills the chunk from {@code position} on with the bytes left in the
+     * buffer, as far as the chunk reaches, for a response that arrives in
+     * parts. Returns the position after the bytes taken from the buffer.
+     */
+    public int fill(ByteBuffer bytes, int position) {
+        if (failure != null) {
+            throw new CancellationException("Chunk download was abandoned after " + position + " bytes");
+        }
+        int end = position + Math.min(bytes.remaining(), length - position);
+        int ahead = Math.min(available, end) - position;
+        if (ahead > 0) {
+            ((Buffer) bytes).position(bytes.position() + ahead);
+            position += ahead;
+        }
+        if (position < end) {
+            ByteBuffer part = bytes.duplicate();
+            ((Buffer) part).limit(part.position() + end - position);
+            write(part, position);
+            ((Buffer) bytes).position(bytes.position() + end - position);
+            position = end;
+            publish(position);
+        }
+        return position;
+    }
+
+    private int skip(InputStream inputStream, int bytes) throws IOException {
+        long skipped = inputStream.skip(bytes);
+        if (skipped > 0) {
+            return (int) skipped;
+        }
+        if (inputStream.read() < 0) {
+            throw new EOFException("Chunk ended after " + available + " of " + length + " bytes");
+        }
+        return 1;
+    }
+
+    /**
+     * Takes a reference to the chunk data, returns false when the chunk has
+     * already been released for good.
+     */
+    public boolean retain() {
+        while (true) {
+            int count = references.get();
+            if (count == 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            recycle();
+        }
+    }
+
+    /**
+     * Marks the chunk as failed, waking up every reader still waiting for
+     * bytes that will now never arrive.
+     */
+    public synchronized void fail(Throwable cause) {
+        failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        notifyAll();
+    }
+
+    /**
+     * Blocks until the first {@code position} bytes of the chunk are present.
+     */
+    public void awaitAvailable(int position) throws IOException, InterruptedException {
+        if (available >= position) {
+            return;
+        }
+        synchronized (this) {
+            waiters++;
+            try {
+                while (available < position) {
+                    if (failure != null) {
+                        throw new IOException("Chunk download failed after " + available + " of " + length + " bytes",
+                                failure);
+                    }
+                    wait();
+                }
+            } finally {
+                waiters--;
+            }
+        }
+    }
+
+    /**
+     * Returns true while a reader is blocked waiting for bytes of this chunk.
+     */
+    public synchronized boolean hasWaiters() {
+        return waiters > 0;
+    }
+
+    private synchronized void publish(int position) {
+        // the other request of a hedged download may be behind, bytes already published stay valid
+        if (position > available) {
+            available = position;
+            notifyAll();
+        }
+    }
+
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[length];
+        asByteBuffer().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns a read-only view of the chunk data, positioned at zero. Only the
+     * first {@link #getAvailable()} bytes are meaningful.
+     */
+    public abstract ByteBuffer asByteBuffer();
+
+    /**
+     * Called once the last reference is released, pooled chunks return their
+     * buffer here.
+     */
+    protected void recycle() {
+    }
+
+    public abstract void copyTo(Pointer buffer, long bufferOffset, int chunkOffset, int bytesToCopy);
+
+    protected abstract int read(InputStream inputStream, int position, int maxBytes) throws IOException;
+
+    protected abstract void write(ByteBuffer bytes, int position);
+}
@@ -17,7 +17,14 @@
  */
 package uk.ac.ebi.ega.egafuse.service;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,52 +32,136 @@ import org.slf4j.LoggerFactory;
 import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
 
 import jnr.ffi.Pointer;
+import ru.serce.jnrfuse.ErrorCodes;
 import uk.ac.ebi.ega.egafuse.model.CacheKey;
+import uk.ac.ebi.ega.egafuse.service.EgaChecksumVerifier.Status;
+import uk.ac.ebi.ega.egafuse.service.EgaDownloadScheduler.Priority;
 
 public class EgaChunkBufferService implements IEgaChunkBufferService {
     private static final Logger LOGGER = LoggerFactory.getLogger(EgaChunkBufferService.class);
-    private int cachePrefetch;
+    private int maxReadahead;
     private long chunkSize;
-    private AsyncLoadingCache<CacheKey, byte[]> cache;
+    private AsyncLoadingCache<CacheKey, EgaChunk> cache;
+    private EgaChunkLoader chunkLoader;
+    private EgaDownloadScheduler downloadScheduler;
+    private EgaChecksumVerifier checksumVerifier;
+    private AtomicLong lastHandle = new AtomicLong();
+    private Map<Long, EgaReadahead> readaheads = new ConcurrentHashMap<>();
 
-    public EgaChunkBufferService(long chunkSize, int cachePrefetch, AsyncLoadingCache<CacheKey, byte[]> cache) {
+    public EgaChunkBufferService(long chunkSize, int maxReadahead, AsyncLoadingCache<CacheKey, EgaChunk> cache,
+            EgaChunkLoader chunkLoader, EgaDownloadScheduler downloadScheduler) {
+        this(chunkSize, maxReadahead, cache, chunkLoader, downloadScheduler, new EgaChecksumVerifier(false, chunkSize));
+    }
+
+    public EgaChunkBufferService(long chunkSize, int maxReadahead, AsyncLoadingCache<CacheKey, EgaChunk> cache,
+            EgaChunkLoader chunkLoader, EgaDownloadScheduler downloadScheduler, EgaChecksumVerifier checksumVerifier) {
         this.chunkSize = chunkSize;
-        this.cachePrefetch = cachePrefetch;
+        this.maxReadahead = maxReadahead;
         this.cache = cache;
+        this.chunkLoader = chunkLoader;
+        this.downloadScheduler = downloadScheduler;
+        this.checksumVerifier = checksumVerifier;
+    }
+
+    @Override
+    public long open() {
+        long handle = lastHandle.incrementAndGet();
+        readaheads.put(handle, new EgaReadahead(chunkSize, maxReadahead));
+        return handle;
     }
 
     @Override
-    public int fillBuffer(Pointer buffer, String fileId, long fileSize, long bytesToRead, long offset) {
+    public void release(long handle) {
+        readaheads.remove(handle);
+        downloadScheduler.cancel(handle);
+    }
+
+    @Override
+    public int fillBuffer(Pointer buffer, long handle, String fileId, long fileSize, long bytesToRead, long offset) {
         int minBytesToRead = (int) Math.min(fileSize - offset, bytesToRead);
         int chunkIndex = (int) (offset / chunkSize);
+        int lastChunkIndex = (int) ((offset + minBytesToRead - 1) / chunkSize);
 
         if (offset >= fileSize || minBytesToRead <= 0)
             return -1;
 
-        prefetchChunk(fileId, chunkIndex, fileSize);
+        // a file that does not match its checksum fails every read until it is read again from its start
+        if (checksumVerifier.isFailed(fileId)) {
+            if (chunkIndex > 0) {
+                LOGGER.error("File {} does not match its checksum, failing the read", fileId);
+                return -ErrorCodes.EIO();
+            }
+            checksumVerifier.restart(fileId);
+        }
+
+        // request every chunk the read touches up front, missing adjacent chunks share one range request
+        List<CacheKey> cacheKeys = new ArrayList<>();
+        for (int index = chunkIndex; index <= lastChunkIndex; index++) {
+            cacheKeys.add(getCacheKey(fileId, index, fileSize));
+        }
+        CompletableFuture<Map<CacheKey, EgaChunk>> chunksFuture = cache.getAll(cacheKeys);
 
+        EgaReadahead readahead = readaheads.get(handle);
+        if (readahead != null) {
+            List<CacheKey> prefetchKeys = new ArrayList<>();
+            boolean isSeek = readahead.onRead(offset, minBytesToRead, fileSize,
+                    prefetchIndex -> prefetchKeys.add(getCacheKey(fileId, prefetchIndex, fileSize)));
+            if (isSeek) {
+                // a seek into the readahead window reads chunks this handle is still prefetching
+                cacheKeys.forEach(downloadScheduler::promote);
+                downloadScheduler.cancel(handle);
+            }
+            if (!prefetchKeys.isEmpty()) {
+                cache.getAll(prefetchKeys, (missingKeys, executor) -> chunkLoader.asyncLoadAll(missingKeys, executor,
+                        handle, Priority.PREFETCH));
+            }
+        }
+
+        List<EgaChunk> retainedChunks = new ArrayList<>();
         try {
-            byte[] chunk = cache.get(getCacheKey(fileId, chunkIndex, fileSize)).get();
-            if (chunk != null) {
-                int chunkOffset = (int) (offset - chunkIndex * chunkSize);
-                buffer.put(0L, chunk, chunkOffset, minBytesToRead);
-                return minBytesToRead;
+            Map<CacheKey, EgaChunk> chunks = chunksFuture.get();
+            int bytesRead = 0;
+            for (int index = chunkIndex; index <= lastChunkIndex; index++) {
+                EgaChunk chunk = retain(chunks.get(cacheKeys.get(index - chunkIndex)), cacheKeys.get(index - chunkIndex));
+                if (chunk == null) {
+                    return -1;
+                }
+                retainedChunks.add(chunk);
+                int chunkOffset = (int) (offset + bytesRead - index * chunkSize);
+                int bytesFromChunk = Math.min(minBytesToRead - bytesRead, chunk.getLength() - chunkOffset);
+                if (chunk.getAvailable() < chunkOffset + bytesFromChunk) {
+                    downloadScheduler.promote(cacheKeys.get(index - chunkIndex));
+                }
+                chunk.awaitAvailable(chunkOffset + bytesFromChunk);
+                chunk.copyTo(buffer, bytesRead, chunkOffset, bytesFromChunk);
+                bytesRead += bytesFromChunk;
             }
-        } catch (InterruptedException | ExecutionException e) {
-            LOGGER.error("Chunk {} could not be retrieved for file {} bytesToRead {} offset {} ", chunkIndex, fileId,
-                    bytesToRead, offset);
+            // the read that completes the file fails when the file does not match its checksum
+            if (offset + bytesRead >= fileSize && checksumVerifier.awaitVerdict(fileId) == Status.FAILED) {
+                LOGGER.error("File {} does not match its checksum, failing the read", fileId);
+                return -ErrorCodes.EIO();
+            }
+            return bytesRead;
+        } catch (InterruptedException | ExecutionException | IOException e) {
+            LOGGER.error("Chunks {}-{} could not be retrieved for file {} bytesToRead {} offset {} ", chunkIndex,
+                    lastChunkIndex, fileId, bytesToRead, offset);
             LOGGER.error("Error in reading from cache - {} ", e.getMessage(), e);
+        } finally {
+            retainedChunks.forEach(EgaChunk::release);
         }
         return -1;
     }
 
-    private void prefetchChunk(String fileId, int chunkIndex, long fileSize) {
-        int maxChunk = (int) (fileSize / chunkSize);
-        int endChunk = Math.min(chunkIndex + cachePrefetch, maxChunk);
-
-        while (chunkIndex <= endChunk) {
-            cache.get(getCacheKey(fileId, chunkIndex++, fileSize));
+    /**
+     * Keeps the chunk buffer from being recycled while it is copied. A chunk
+     * evicted since it was looked up is loaded again.
+     */
+    private EgaChunk retain(EgaChunk chunk, CacheKey cacheKey) throws InterruptedException, ExecutionException {
+        if (chunk == null || chunk.retain()) {
+            return chunk;
         }
+        chunk = cache.get(cacheKey).get();
+        return chunk != null && chunk.retain() ? chunk : null;
     }
 
     private CacheKey getCacheKey(String fileId, int chunkIndex, long fileSize) {
@@ -0,0 +1,412 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.benmanes.caffeine.cache.CacheLoader;
+
+import uk.ac.ebi.ega.egafuse.exception.ClientProtocolException;
+import uk.ac.ebi.ega.egafuse.model.CacheKey;
+import uk.ac.ebi.ega.egafuse.service.EgaDownloadScheduler.DownloadTask;
+import uk.ac.ebi.ega.egafuse.service.EgaDownloadScheduler.Priority;
+
+/**
+ * Loads chunks into the in-memory cache, from the disk cache when one is
+ * configured and otherwise from the data API. A downloading chunk is handed to
+ * the cache as soon as it is allocated so that readers can start on the bytes
+ * that have already arrived. Downloaded chunks are written to the disk cache in
+ * the background, off the read path.
+ * <p>
+ * A failed download is submitted to the scheduler again with a backoff, the
+ * download thread is free for other chunks in between. Synchronous loads go
+ * through the same path, no thread sleeps between attempts.
+ * <p>
+ * Every chunk that is completely loaded is reported to the checksum verifier,
+ * which digests its file in order in the background.
+ * <p>
+ * With asynchronous downloads a request holds no thread while it is in flight,
+ * its outcome is handled on the thread of the HTTP client that completes it.
+ */
+public class EgaChunkLoader implements CacheLoader<CacheKey, EgaChunk> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EgaChunkLoader.class);
+    private static final int MAX_PENDING_DISK_WRITES = 16;
+    private IFileChunkDownloadService fileChunkDownloadService;
+    private IEgaDiskChunkCache diskChunkCache;
+    private EgaDownloadScheduler downloadScheduler;
+    private EgaChunkPool chunkPool;
+    private EgaRetryPolicy retryPolicy;
+    private EgaChecksumVerifier checksumVerifier;
+    private ExecutorService diskWriteExecutor;
+    private ConcurrentMap<CacheKey, CompletableFuture<EgaChunk>> cacheEntries;
+    private boolean asyncDownloads;
+
+    public EgaChunkLoader(IFileChunkDownloadService fileChunkDownloadService, EgaDownloadScheduler downloadScheduler,
+            EgaChunkPool chunkPool, EgaRetryPolicy retryPolicy, EgaChecksumVerifier checksumVerifier) {
+        this(fileChunkDownloadService, null, downloadScheduler, chunkPool, retryPolicy, checksumVerifier);
+    }
+
+    public EgaChunkLoader(IFileChunkDownloadService fileChunkDownloadService, IEgaDiskChunkCache diskChunkCache,
+            EgaDownloadScheduler downloadScheduler, EgaChunkPool chunkPool, EgaRetryPolicy retryPolicy,
+            EgaChecksumVerifier checksumVerifier) {
+        this(fileChunkDownloadService, diskChunkCache, downloadScheduler, chunkPool, retryPolicy, checksumVerifier,
+                false);
+    }
+
+    /**
+     * @param asyncDownloads download through
+     *                       {@link IFileChunkDownloadService#downloadChunksAsync}
+     *                       instead of on a thread of the scheduler
+     */
+    public EgaChunkLoader(IFileChunkDownloadService fileChunkDownloadService, IEgaDiskChunkCache diskChunkCache,
+            EgaDownloadScheduler downloadScheduler, EgaChunkPool chunkPool, EgaRetryPolicy retryPolicy,
+            EgaChecksumVerifier checksumVerifier, boolean asyncDownloads) {
+        this.fileChunkDownloadService = fileChunkDownloadService;
+        this.diskChunkCache = diskChunkCache;
+        this.downloadScheduler = downloadScheduler;
+        this.chunkPool = chunkPool;
+        this.retryPolicy = retryPolicy;
+        this.checksumVerifier = checksumVerifier;
+        this.asyncDownloads = asyncDownloads;
+        if (diskChunkCache != null) {
+            // when the disk can't keep up new chunks are simply not written to it
+            this.diskWriteExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(MAX_PENDING_DISK_WRITES), runnable -> {
+                        Thread thread = new Thread(runnable, "disk-cache-writer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }, new ThreadPoolExecutor.DiscardPolicy());
+        }
+    }
+
+    /**
+     * Entries of the cache this loader feeds, used to drop chunks whose download
+     * failed after they had already been handed out.
+     */
+    public void setCacheEntries(ConcurrentMap<CacheKey, CompletableFuture<EgaChunk>> cacheEntries) {
+        this.cacheEntries = cacheEntries;
+    }
+
+    /**
+     * Waits for the chunk to be loaded completely, failed downloads are retried
+     * by the scheduler as for {@link #asyncLoad(CacheKey, Executor)}.
+     */
+    @Override
+    public EgaChunk load(CacheKey cacheKey) throws Exception {
+        EgaChunk chunk = asyncLoad(cacheKey, Runnable::run).get();
+        chunk.awaitAvailable(chunk.getLength());
+        return chunk;
+    }
+
+    @Override
+    public CompletableFuture<EgaChunk> asyncLoad(CacheKey cacheKey, Executor executor) {
+        return asyncLoadAll(Collections.singletonList(cacheKey), executor).thenApply(chunks -> chunks.get(cacheKey));
+    }
+
+    @Override
+    public CompletableFuture<Map<CacheKey, EgaChunk>> asyncLoadAll(Iterable<? extends CacheKey> cacheKeys,
+            Executor executor) {
+        return asyncLoadAll(cacheKeys, executor, 0, Priority.DEMAND);
+    }
+
+    /**
+     * Chunks missing from the disk cache are downloaded with one range request
+     * per run of adjacent chunks, each chunk is filled in turn as the response
+     * streams in. Prefetches can later be cancelled through the scheduler using
+     * the owner they were requested for, a running one stops its request unless
+     * a reader is waiting for its chunks.
+     */
+    public CompletableFuture<Map<CacheKey, EgaChunk>> asyncLoadAll(Iterable<? extends CacheKey> cacheKeys,
+            Executor executor, long owner, Priority priority) {
+        CompletableFuture<Map<CacheKey, EgaChunk>> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            Map<CacheKey, EgaChunk> chunks = new HashMap<>();
+            List<CacheKey> missingKeys = new ArrayList<>();
+            try {
+                for (CacheKey cacheKey : cacheKeys) {
+                    EgaChunk chunk = getFromDisk(cacheKey);
+                    if (chunk == null) {
+                        chunk = chunkPool.allocate((int) cacheKey.getChunkBytesToRead());
+                        missingKeys.add(cacheKey);
+                    }
+                    chunks.put(cacheKey, chunk);
+                }
+            } catch (Throwable e) {
+                // nobody gets the chunks allocated so far, their buffers go back to the pool
+                chunks.values().forEach(EgaChunk::release);
+                future.completeExceptionally(e);
+                return;
+            }
+
+            future.complete(chunks);
+            for (CacheKey cacheKey : chunks.keySet()) {
+                if (!missingKeys.contains(cacheKey)) {
+                    checksumVerifier.onChunkLoaded(cacheKey);
+                }
+            }
+            for (List<CacheKey> run : toAdjacentRuns(missingKeys)) {
+                List<EgaChunk> runChunks = new ArrayList<>(run.size());
+                for (CacheKey cacheKey : run) {
+                    runChunks.add(chunks.get(cacheKey));
+                }
+                submit(owner, priority, run, runChunks, 1);
+            }
+        });
+        return future;
+    }
+
+    private void submit(long owner, Priority priority, List<CacheKey> cacheKeys, List<EgaChunk> chunks, int attempt) {
+        downloadScheduler.submit(newTask(owner, priority, cacheKeys, chunks, attempt));
+    }
+
+    private DownloadTask newTask(long owner, Priority priority, List<CacheKey> cacheKeys, List<EgaChunk> chunks,
+            int attempt) {
+        InFlightRequest request = new InFlightRequest();
+        if (asyncDownloads) {
+            return DownloadTask.nonBlocking(owner, priority, cacheKeys,
+                    () -> downloadAsync(owner, priority, cacheKeys, chunks, attempt, request),
+                    () -> cancel(owner, cacheKeys, chunks, attempt), () -> abort(chunks, request));
+        }
+        return new DownloadTask(owner, priority, cacheKeys,
+                () -> download(owner, priority, cacheKeys, chunks, attempt, request),
+                () -> cancel(owner, cacheKeys, chunks, attempt), () -> abort(chunks, request));
+    }
+
+    private void download(long owner, Priority priority, List<CacheKey> cacheKeys, List<EgaChunk> chunks,
+            int attempt, InFlightRequest request) {
+        if (!retain(cacheKeys, chunks)) {
+            return;
+        }
+        boolean[] completedBefore = completed(chunks);
+        Throwable failure = null;
+        try {
+            fileChunkDownloadService.downloadChunks(cacheKeys, chunks, request::setCanceller);
+        } catch (Throwable e) {
+            failure = e;
+        }
+        onDownloaded(owner, priority, cacheKeys, chunks, attempt, completedBefore, failure);
+    }
+
+    private CompletableFuture<Void> downloadAsync(long owner, Priority priority, List<CacheKey> cacheKeys,
+            List<EgaChunk> chunks, int attempt, InFlightRequest request) {
+        if (!retain(cacheKeys, chunks)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        boolean[] completedBefore = completed(chunks);
+        CompletableFuture<Void> download;
+        try {
+            download = fileChunkDownloadService.downloadChunksAsync(cacheKeys, chunks, request::setCanceller);
+        } catch (Throwable e) {
+            download = new CompletableFuture<>();
+            download.completeExceptionally(e);
+        }
+        return download.handle((result, e) -> {
+            onDownloaded(owner, priority, cacheKeys, chunks, attempt, completedBefore,
+                    e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+            return null;
+        });
+    }
+
+    private static boolean[] completed(List<EgaChunk> chunks) {
+        // chunks an earlier attempt completed have already been written to disk and reported
+        boolean[] completed = new boolean[chunks.size()];
+        for (int i = 0; i < chunks.size(); i++) {
+            completed[i] = chunks.get(i).isComplete();
+        }
+        return completed;
+    }
+
+    private boolean retain(List<CacheKey> cacheKeys, List<EgaChunk> chunks) {
+        // hold the buffers so that an eviction during the download can not hand them to another chunk
+        List<EgaChunk> retainedChunks = new ArrayList<>(chunks.size());
+        for (EgaChunk chunk : chunks) {
+            if (!chunk.retain()) {
+                LOGGER.debug("Chunks {} were evicted before their download started", cacheKeys);
+                retainedChunks.forEach(EgaChunk::release);
+                abandon(cacheKeys, chunks, new CancellationException("Chunk evicted"));
+                return false;
+            }
+            retainedChunks.add(chunk);
+        }
+        return true;
+    }
+
+    private void onDownloaded(long owner, Priority priority, List<CacheKey> cacheKeys, List<EgaChunk> chunks,
+            int attempt, boolean[] completedBefore, Throwable failure) {
+        try {
+            if (failure == null) {
+                retryPolicy.onSuccess();
+            } else if (failure instanceof CancellationException) {
+                LOGGER.debug("Download of chunks {} cancelled", cacheKeys);
+                cancel(owner, cacheKeys, chunks, attempt);
+            } else if (failure instanceof IOException || failure instanceof ClientProtocolException) {
+                retryPolicy.onFailure();
+                if (retryPolicy.canRetry(attempt)) {
+                    long backoffMillis = retryPolicy.getBackoffMillis(attempt);
+                    LOGGER.warn("Download of chunks {} failed, retrying in {} ms - {}", cacheKeys, backoffMillis,
+                            failure.getMessage());
+                    downloadScheduler.submit(newTask(owner, priority, cacheKeys, chunks, attempt + 1),
+                            backoffMillis);
+                } else {
+                    LOGGER.error("Unable to download chunks {} after {} attempts - {}", cacheKeys, attempt,
+                            failure.getMessage(), failure);
+                    abandon(cacheKeys, chunks, failure);
+                }
+            } else {
+                LOGGER.error("Unable to download chunks {} - {}", cacheKeys, failure.getMessage(), failure);
+                abandon(cacheKeys, chunks, failure);
+            }
+        } finally {
+            for (int i = 0; i < cacheKeys.size(); i++) {
+                if (!completedBefore[i] && chunks.get(i).isComplete()) {
+                    writeToDiskInBackground(cacheKeys.get(i), chunks.get(i));
+                    checksumVerifier.onChunkLoaded(cacheKeys.get(i));
+                }
+            }
+            chunks.forEach(EgaChunk::release);
+        }
+    }
+
+    /**
+     * A cancelled prefetch is only abandoned while nobody reads its chunks, a
+     * reader of another handle may already be waiting for them.
+     */
+    private void cancel(long owner, List<CacheKey> cacheKeys, List<EgaChunk> chunks, int attempt) {
+        for (EgaChunk chunk : chunks) {
+            if (chunk.hasWaiters()) {
+                submit(owner, Priority.DEMAND, cacheKeys, chunks, attempt);
+                return;
+            }
+        }
+        abandon(cacheKeys, chunks, new CancellationException("Prefetch cancelled"));
+    }
+
+    /**
+     * A running prefetch stops its request unless somebody waits for its chunks.
+     */
+    private void abort(List<EgaChunk> chunks, InFlightRequest request) {
+        for (EgaChunk chunk : chunks) {
+            if (chunk.hasWaiters()) {
+                return;
+            }
+        }
+        request.cancel();
+    }
+
+    private void abandon(List<CacheKey> cacheKeys, List<EgaChunk> chunks, Throwable cause) {
+        for (int i = 0; i < cacheKeys.size(); i++) {
+            if (!chunks.get(i).isComplete()) {
+                chunks.get(i).fail(cause);
+                invalidate(cacheKeys.get(i), chunks.get(i));
+            }
+        }
+    }
+
+    private void invalidate(CacheKey cacheKey, EgaChunk chunk) {
+        if (cacheEntries == null) {
+            return;
+        }
+        CompletableFuture<EgaChunk> entry = cacheEntries.get(cacheKey);
+        if (entry != null && entry.getNow(null) == chunk) {
+            cacheEntries.remove(cacheKey, entry);
+        }
+    }
+
+    static List<List<CacheKey>> toAdjacentRuns(List<CacheKey> cacheKeys) {
+        List<CacheKey> sortedKeys = new ArrayList<>(cacheKeys);
+        sortedKeys.sort(Comparator.comparing(CacheKey::getFileId).thenComparingLong(CacheKey::getStartCoordinate));
+
+        List<List<CacheKey>> runs = new ArrayList<>();
+        List<CacheKey> run = null;
+        CacheKey previous = null;
+        for (CacheKey cacheKey : sortedKeys) {
+            if (previous == null || !previous.getFileId().equals(cacheKey.getFileId())
+                    || previous.getStartCoordinate() + previous.getChunkBytesToRead() != cacheKey.getStartCoordinate()) {
+                run = new ArrayList<>();
+                runs.add(run);
+            }
+            run.add(cacheKey);
+            previous = cacheKey;
+        }
+        return runs;
+    }
+
+    private EgaChunk getFromDisk(CacheKey cacheKey) throws IOException {
+        return diskChunkCache == null ? null : diskChunkCache.get(cacheKey);
+    }
+
+    private void writeToDiskInBackground(CacheKey cacheKey, EgaChunk chunk) {
+        if (diskChunkCache != null) {
+            diskWriteExecutor.execute(() -> writeToDisk(cacheKey, chunk));
+        }
+    }
+
+    private void writeToDisk(CacheKey cacheKey, EgaChunk chunk) {
+        if (!chunk.retain()) {
+            return;
+        }
+        try {
+            diskChunkCache.put(cacheKey, chunk);
+        } catch (IOException e) {
+            LOGGER.error("Unable to write chunk {} to disk cache - {}", cacheKey, e.getMessage(), e);
+        } finally {
+            chunk.release();
+        }
+    }
+
+    /**
+     * The request of a running download, a cancel that comes before the request
+     * is made cancels it as soon as it is.
+     */
+    private static class InFlightRequest {
+        private Runnable canceller;
+        private boolean cancelled;
+
+        synchronized void setCanceller(Runnable canceller) {
+            this.canceller = canceller;
+            if (cancelled) {
+                canceller.run();
+            }
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (canceller != null) {
+                canceller.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of chunk buffers. Full size chunks take their buffer from the
+ * pool and hand it back once the last reference to the chunk is released, so
+ * that streaming through a file does not allocate a new chunk sized array per
+ * download. Chunks of any other size, such as the last chunk of a file, are
+ * allocated as before.
+ */
+public class EgaChunkPool {
+    private final int bufferSize;
+    private final int maxPooledBuffers;
+    private final boolean offHeap;
+    private final Queue<byte[]> heapBuffers = new ConcurrentLinkedQueue<>();
+    private final Queue<ByteBuffer> directBuffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledBuffers = new AtomicInteger();
+
+    public EgaChunkPool(int bufferSize, int maxPooledBuffers, boolean offHeap) {
+        this.bufferSize = bufferSize;
+        this.maxPooledBuffers = maxPooledBuffers;
+        this.offHeap = offHeap;
+    }
+
+    public EgaChunk allocate(int length) {
+        if (length != bufferSize) {
+            return EgaChunk.allocate(length, offHeap);
+        }
+
+        if (offHeap) {
+            ByteBuffer data = take(directBuffers);
+            return new DirectEgaChunk(data != null ? data : ByteBuffer.allocateDirect(bufferSize), false, this);
+        }
+        byte[] data = take(heapBuffers);
+        return new HeapEgaChunk(data != null ? data : new byte[bufferSize], false, this);
+    }
+
+    public int getPooledBuffers() {
+        return pooledBuffers.get();
+    }
+
+    void recycle(byte[] data) {
+        offer(heapBuffers, data);
+    }
+
+    void recycle(ByteBuffer data) {
+        offer(directBuffers, data);
+    }
+
+    private <T> T take(Queue<T> buffers) {
+        T buffer = buffers.poll();
+        if (buffer != null) {
+            pooledBuffers.decrementAndGet();
+        }
+        return buffer;
+    }
+
+    private <T> void offer(Queue<T> buffers, T buffer) {
+        if (pooledBuffers.incrementAndGet() <= maxPooledBuffers) {
+            buffers.offer(buffer);
+        } else {
+            pooledBuffers.decrementAndGet();
+        }
+    }
+}
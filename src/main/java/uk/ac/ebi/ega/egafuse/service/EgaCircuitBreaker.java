@@ -0,0 +1,111 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops new requests to the data API while it is throttling or failing. The
+ * circuit opens after a number of consecutive failures, or straight away when
+ * the server asks to back off, for as long as its Retry-After says. Once that
+ * time has passed a single request at a time is let through, the first success
+ * closes the circuit again and a failure opens it for another period.
+ */
+public class EgaCircuitBreaker {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EgaCircuitBreaker.class);
+    private final int failureThreshold;
+    private final long openMillis;
+    private final LongSupplier clock;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openUntilMillis;
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    public EgaCircuitBreaker(int failureThreshold, long openMillis) {
+        this(failureThreshold, openMillis, System::currentTimeMillis);
+    }
+
+    EgaCircuitBreaker(int failureThreshold, long openMillis, LongSupplier clock) {
+        this.failureThreshold = Math.max(failureThreshold, 1);
+        this.openMillis = openMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Returns true when a new request may start while {@code running} requests
+     * are in flight.
+     */
+    public synchronized boolean allowsRequest(int running) {
+        if (state == State.OPEN) {
+            if (clock.getAsLong() < openUntilMillis) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+        }
+        return state == State.CLOSED || running == 0;
+    }
+
+    /**
+     * Returns how long the circuit stays open, 0 when it is not open.
+     */
+    public synchronized long getOpenMillisRemaining() {
+        return state == State.OPEN ? Math.max(openUntilMillis - clock.getAsLong(), 1) : 0;
+    }
+
+    public synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            LOGGER.info("Data API is answering again, closing circuit");
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    public synchronized void onFailure() {
+        if (++consecutiveFailures >= failureThreshold || state == State.HALF_OPEN) {
+            open(openMillis);
+        }
+    }
+
+    /**
+     * The server answered 429 or 503, {@code retryAfterMillis} is its
+     * Retry-After or a negative value when it did not send one.
+     */
+    public synchronized void onThrottled(long retryAfterMillis) {
+        open(retryAfterMillis >= 0 ? retryAfterMillis : openMillis);
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    private void open(long millis) {
+        long until = clock.getAsLong() + millis;
+        if (state != State.OPEN || until > openUntilMillis) {
+            LOGGER.warn("Data API is throttling or failing, pausing downloads for {} ms", millis);
+            openUntilMillis = until;
+        }
+        state = State.OPEN;
+        consecutiveFailures = 0;
+    }
+}
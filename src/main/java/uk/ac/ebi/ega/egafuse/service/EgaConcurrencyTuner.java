@@ -0,0 +1,143 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures download throughput and, when auto-tuning is enabled, adjusts how
+ * many chunk downloads may run at once. The limit grows by one connection after
+ * every round of downloads that kept the aggregate throughput up and is halved
+ * as soon as a round sees an error, a latency spike or a drop in throughput. A
+ * round lasts as many downloads as the current limit.
+ * <p>
+ * A server that throttles requests halves the limit right away, once per
+ * round, even when auto-tuning is disabled; the limit then grows back towards
+ * the maximum a connection per round.
+ */
+public class EgaConcurrencyTuner {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EgaConcurrencyTuner.class);
+    private static final double LATENCY_SPIKE_FACTOR = 3.0;
+    private static final double THROUGHPUT_DROP_FACTOR = 0.75;
+    private static final double EWMA_WEIGHT = 0.2;
+    private final int minLimit;
+    private final int maxLimit;
+    private final boolean enabled;
+    private final LongSupplier nanoClock;
+    private volatile int limit;
+    private int roundEvents;
+    private long roundBytes;
+    private long roundStartNanos;
+    private boolean roundCongested;
+    private boolean roundThrottled;
+    private double lastRoundThroughput;
+    private double latencyNanosAverage;
+    private double connectionThroughputAverage;
+
+    public EgaConcurrencyTuner(int minLimit, int maxLimit, boolean enabled) {
+        this(minLimit, maxLimit, enabled, System::nanoTime);
+    }
+
+    EgaConcurrencyTuner(int minLimit, int maxLimit, boolean enabled, LongSupplier nanoClock) {
+        this.maxLimit = Math.max(maxLimit, 1);
+        this.minLimit = Math.max(Math.min(minLimit, this.maxLimit), 1);
+        this.enabled = enabled;
+        this.nanoClock = nanoClock;
+        this.limit = enabled ? Math.max(this.minLimit, this.maxLimit / 2) : this.maxLimit;
+        this.roundStartNanos = nanoClock.getAsLong();
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Average throughput of a single download, in bytes per second.
+     */
+    public synchronized double getConnectionThroughput() {
+        return connectionThroughputAverage;
+    }
+
+    /**
+     * Records the time it took the server to answer a request.
+     */
+    public synchronized void onResponse(long latencyNanos) {
+        if (latencyNanosAverage > 0 && latencyNanos > LATENCY_SPIKE_FACTOR * latencyNanosAverage) {
+            roundCongested = true;
+        }
+        latencyNanosAverage = average(latencyNanosAverage, latencyNanos);
+    }
+
+    public synchronized void onComplete(long bytes, long durationNanos) {
+        connectionThroughputAverage = average(connectionThroughputAverage,
+                bytes * 1e9 / Math.max(durationNanos, 1));
+        roundBytes += bytes;
+        endEvent();
+    }
+
+    public synchronized void onError() {
+        roundCongested = true;
+        endEvent();
+    }
+
+    /**
+     * Records a request the server refused because it is overloaded.
+     */
+    public synchronized void onThrottle() {
+        if (!roundThrottled) {
+            roundThrottled = true;
+            limit = Math.max(minLimit, limit / 2);
+            LOGGER.debug("Download API is throttling, concurrency limit {}", limit);
+        }
+        roundCongested = true;
+        endEvent();
+    }
+
+    private void endEvent() {
+        if (++roundEvents < limit) {
+            return;
+        }
+
+        long now = nanoClock.getAsLong();
+        double roundThroughput = roundBytes * 1e9 / Math.max(now - roundStartNanos, 1);
+        // a throttled round has already halved the limit
+        if (!roundThrottled) {
+            if (enabled && (roundCongested || roundThroughput < lastRoundThroughput * THROUGHPUT_DROP_FACTOR)) {
+                limit = Math.max(minLimit, limit / 2);
+            } else {
+                limit = Math.min(maxLimit, limit + 1);
+            }
+        }
+        LOGGER.debug("Download throughput {} B/s aggregate, {} B/s per connection, concurrency limit {}",
+                (long) roundThroughput, (long) connectionThroughputAverage, limit);
+
+        lastRoundThroughput = roundThroughput;
+        roundEvents = 0;
+        roundBytes = 0;
+        roundStartNanos = now;
+        roundCongested = false;
+        roundThrottled = false;
+    }
+
+    private static double average(double average, double sample) {
+        return average == 0 ? sample : average + EWMA_WEIGHT * (sample - average);
+    }
+}
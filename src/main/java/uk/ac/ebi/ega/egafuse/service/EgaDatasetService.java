@@ -37,37 +37,73 @@ import uk.ac.ebi.ega.egafuse.exception.ClientProtocolException;
 
 public class EgaDatasetService implements IEgaDatasetService {
     private static final Logger LOGGER = LoggerFactory.getLogger(EgaDatasetService.class);
+    private static final String DATASETS = "datasets";
     private IEgaFileService egaFileService;
     private OkHttpClient okHttpClient;
     private String apiURL;
     private Token token;
     private ObjectMapper mapper;
+    private EgaMetadataCache<String, List<EgaDirectory>> metadataCache;
 
     public EgaDatasetService(OkHttpClient okHttpClient, String apiURL, Token token, IEgaFileService egaFileService) {
+        this(okHttpClient, apiURL, token, egaFileService, new EgaMetadataCache<>(Long.MAX_VALUE, 0, 0));
+    }
+
+    public EgaDatasetService(OkHttpClient okHttpClient, String apiURL, Token token, IEgaFileService egaFileService,
+            EgaMetadataCache<String, List<EgaDirectory>> metadataCache) {
         this.okHttpClient = okHttpClient;
         this.apiURL = apiURL;
         this.token = token;
         this.egaFileService = egaFileService;
         this.mapper = new ObjectMapper();
+        this.metadataCache = metadataCache;
     }
 
     @Override
     public List<EgaDirectory> getDatasets() {
-        try {
-            Request datasetRequest = new Request.Builder().url(apiURL + "/metadata/datasets")
-                    .addHeader("Authorization", "Bearer " + token.getBearerToken()).build();
-
-            try (Response response = okHttpClient.newCall(datasetRequest).execute()) {
-                return buildResponseGetDataset(response);
-            } catch (IOException e) {
-                throw new IOException("Unable to execute request. Can't be retried.", e);
-            } catch (ClientProtocolException e) {
-                throw e;
-            }
-        } catch (Exception e) {
-            LOGGER.error("Error in get dataset - {}", e.getMessage(), e);
+        return metadataCache.get(DATASETS, key -> fetchDatasets(), Collections.emptyList());
+    }
+
+    /**
+     * Datasets as they were kept earlier, served until they are fetched again.
+     */
+    void restore(List<String> datasetIds) {
+        List<EgaDirectory> egaDirectorys = new ArrayList<>(datasetIds.size());
+        for (String datasetId : datasetIds) {
+            egaDirectorys.add(new EgaDirectory(datasetId, this, egaFileService));
+        }
+        metadataCache.seed(DATASETS, egaDirectorys);
+    }
+
+    /**
+     * Ids of the datasets as they are cached, null when they have not been
+     * loaded.
+     */
+    List<String> getCachedDatasetIds() {
+        List<EgaDirectory> egaDirectorys = metadataCache.getIfPresent(DATASETS);
+        if (egaDirectorys == null) {
+            return null;
+        }
+        List<String> datasetIds = new ArrayList<>(egaDirectorys.size());
+        for (EgaDirectory egaDirectory : egaDirectorys) {
+            datasetIds.add(egaDirectory.getName());
+        }
+        return datasetIds;
+    }
+
+    EgaMetadataCache<String, List<EgaDirectory>> getMetadataCache() {
+        return metadataCache;
+    }
+
+    private List<EgaDirectory> fetchDatasets() throws IOException, ClientProtocolException {
+        Request datasetRequest = new Request.Builder().url(apiURL + "/metadata/datasets")
+                .addHeader("Authorization", "Bearer " + token.getBearerToken()).build();
+
+        try (Response response = okHttpClient.newCall(datasetRequest).execute()) {
+            return buildResponseGetDataset(response);
+        } catch (IOException e) {
+            throw new IOException("Unable to execute request. Can't be retried.", e);
         }
-        return Collections.emptyList();
     }
 
     private List<EgaDirectory> buildResponseGetDataset(final Response response)
@@ -89,70 +125,76 @@ public class EgaDatasetService implements IEgaDatasetService {
         }
     }
 
+    /**
+     * Builds the directories of a dataset in one pass over its files. Files in
+     * the same directory as the file before them, the usual order, are placed
+     * without looking at their path again. Directory names are interned, the
+     * same names recur across directories and datasets. The new tree replaces
+     * the entries the dataset directory had.
+     */
     @Override
     public void buildSubDirectoryFromFilePath(List<EgaFile> egaFiles, EgaDirectory datasetRootNode) {
-        Map<String, EgaDirectory> filePathDirectory = new HashMap<>();
+        DirectoryBuilder root = new DirectoryBuilder(datasetRootNode);
+        String previousFilePath = null;
+        DirectoryBuilder previousDirectory = null;
 
         for (EgaFile egaFile : egaFiles) {
-            EgaDirectory currentDirectory = null;
-            String filePath = recreateFilePath(egaFile.getFile().getFilePath().trim());
-                    
-            // if file does not have any directory
-            if (filePath.endsWith(".cip")) {
-                filePathDirectory.put(filePath, datasetRootNode);
-                datasetRootNode.add(egaFile);
-            }
-            // if directory already created
-            else if (filePathDirectory.containsKey(filePath)) {
-                currentDirectory = filePathDirectory.get(filePath);
-                currentDirectory.add(egaFile);
-            }
-            // if directory doesn't exists
-            else {
-                createSubDirectory(filePath, filePathDirectory, currentDirectory, datasetRootNode, egaFile);
-            }
+            String filePath = egaFile.getFile().getFilePath();
+            DirectoryBuilder directory = filePath.equals(previousFilePath) ? previousDirectory
+                    : findDirectory(root, filePath);
+            directory.entries.add(egaFile);
+            previousFilePath = filePath;
+            previousDirectory = directory;
         }
+        root.build();
     }
-    
-    private String recreateFilePath(String filePath) {
-        String pathSoFar = "";
-        for(String subPath: filePath.split("/")) {
-            if(!subPath.trim().isEmpty()) {
-                pathSoFar = pathSoFar.isEmpty() ? subPath.trim() : pathSoFar.concat("/").concat(subPath.trim());
-            }            
+
+    private DirectoryBuilder findDirectory(DirectoryBuilder root, String filePath) {
+        // a path that ends with the file name puts the file in the dataset directory
+        if (filePath.trim().endsWith(".cip")) {
+            return root;
+        }
+        DirectoryBuilder directory = root;
+        int start = 0;
+        while (start <= filePath.length()) {
+            int end = filePath.indexOf('/', start);
+            end = end < 0 ? filePath.length() : end;
+            String name = filePath.substring(start, end).trim();
+            if (!name.isEmpty()) {
+                directory = directory.subDirectory(name);
+            }
+            start = end + 1;
         }
-        return pathSoFar;
+        return directory;
     }
 
-    private void createSubDirectory(String filePath, Map<String, EgaDirectory> filePathDirectory,
-            EgaDirectory currentDirectory, EgaDirectory datasetRootNode, EgaFile egaFile) {
-        String subPaths[] = filePath.split("/");
-        String pathSoFar = "";
-        EgaDirectory subPathDirectory = null;
-
-        // create directory
-        for (String subPath : subPaths) {
-            pathSoFar = pathSoFar.isEmpty() ? subPath.trim() : pathSoFar.concat("/").concat(subPath.trim());
-
-            if (filePathDirectory.get(pathSoFar) == null) {
-                subPathDirectory = new EgaDirectory(subPath, this, egaFileService);
-
-                // create first child of datasetRootNode
-                if (currentDirectory == null) {
-                    datasetRootNode.add(subPathDirectory);
-                    filePathDirectory.put(pathSoFar, subPathDirectory);
-                } else {
-                    currentDirectory.add(subPathDirectory);
-                    filePathDirectory.put(pathSoFar, subPathDirectory);
-                }
-            } else {
-                subPathDirectory = filePathDirectory.get(pathSoFar);
+    private static final class DirectoryBuilder {
+        private final EgaDirectory directory;
+        private final List<EgaPath> entries = new ArrayList<>();
+        private Map<String, DirectoryBuilder> subDirectories;
+
+        private DirectoryBuilder(EgaDirectory directory) {
+            this.directory = directory;
+        }
+
+        private DirectoryBuilder subDirectory(String name) {
+            if (subDirectories == null) {
+                subDirectories = new HashMap<>();
+            }
+            DirectoryBuilder subDirectory = subDirectories.get(name);
+            if (subDirectory == null) {
+                subDirectory = new DirectoryBuilder(new EgaDirectory(name.intern()));
+                subDirectories.put(name, subDirectory);
+                entries.add(subDirectory.directory);
             }
-            currentDirectory = subPathDirectory;
+            return subDirectory;
         }
 
-        // add file to current directory
-        currentDirectory.add(egaFile);
+        private void build() {
+            if (subDirectories != null) {
+                subDirectories.values().forEach(DirectoryBuilder::build);
+            }
+            directory.setContents(entries);
+        }
     }
-
 }
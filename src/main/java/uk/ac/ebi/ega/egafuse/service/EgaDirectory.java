@@ -20,16 +20,40 @@ package uk.ac.ebi.ega.egafuse.service;
 import static uk.ac.ebi.ega.egafuse.config.EgaFuseApplicationConfig.isTreeStructureEnable;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
 import jnr.ffi.Pointer;
 import ru.serce.jnrfuse.FuseFillDir;
 import ru.serce.jnrfuse.struct.FileStat;
+import uk.ac.ebi.ega.egafuse.model.File;
 
+/**
+ * A directory of the mounted tree. Its entries are kept in an array sorted by
+ * name that is replaced, never modified, so paths are resolved one segment at
+ * a time with a binary search that takes no lock and allocates nothing.
+ * Directories made from the paths of files carry no services, only the root
+ * and dataset directories load their entries, on the first listing or the
+ * first lookup of a path below them, whichever comes first. Later listings and
+ * lookups of missing entries ask the services again, which answer from their
+ * metadata cache, and the entries are replaced only when a listing arrives
+ * that differs from the one they were built from.
+ */
 public class EgaDirectory extends EgaPath {
-    protected List<EgaPath> contents = new ArrayList<>();
+    private static final EgaPath[] EMPTY = new EgaPath[0];
+    private static final Comparator<EgaPath> BY_NAME = Comparator.comparing(EgaPath::getName);
+    protected volatile EgaPath[] contents = EMPTY;
     private IEgaDatasetService egaDatasetService;
     private IEgaFileService egaFileService;
+    private volatile List<? extends EgaPath> listing;
+
+    public EgaDirectory(String name) {
+        this(name, null, null);
+    }
 
     public EgaDirectory(String name, IEgaDatasetService egaDatasetService,
             IEgaFileService egaFileService) {
@@ -39,63 +63,208 @@ public class EgaDirectory extends EgaPath {
     }
 
     public synchronized void add(EgaPath p) {
-        contents.add(p);
+        EgaPath[] current = contents;
+        int index = Arrays.binarySearch(current, p, BY_NAME);
+        index = index < 0 ? -index - 1 : index;
+        EgaPath[] updated = new EgaPath[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, index);
+        updated[index] = p;
+        System.arraycopy(current, index, updated, index + 1, current.length - index);
         p.setParent(this);
+        contents = updated;
+    }
+
+    /**
+     * Replaces the entries with the given ones, sorted once rather than added
+     * one at a time.
+     */
+    public synchronized void setContents(List<? extends EgaPath> paths) {
+        EgaPath[] sorted = paths.toArray(new EgaPath[0]);
+        Arrays.sort(sorted, BY_NAME);
+        for (EgaPath p : sorted) {
+            p.setParent(this);
+        }
+        contents = sorted;
     }
 
     public synchronized void deleteChild(EgaPath child) {
-        contents.remove(child);
+        EgaPath[] current = contents;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == child) {
+                EgaPath[] updated = new EgaPath[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                contents = updated;
+                return;
+            }
+        }
     }
 
     @Override
     public EgaPath find(String path) {
-        if (super.find(path) != null) {
-            return super.find(path);
+        EgaPath p = this;
+        int start = 0;
+        while (start < path.length() && path.charAt(start) == '/') {
+            start++;
         }
-        while (path.startsWith("/")) {
-            path = path.substring(1);
+        if (compare(getName(), path, start, path.length()) == 0) {
+            return this;
         }
-        synchronized (this) {
-            if (!path.contains("/")) {
-                for (EgaPath p : contents) {
-                    if (p.getName().equals(path)) {
-                        return p;
-                    }
-                }
-                return null;
+        while (p != null) {
+            while (start < path.length() && path.charAt(start) == '/') {
+                start++;
             }
-            String nextName = path.substring(0, path.indexOf("/"));
-            String rest = path.substring(path.indexOf("/"));
-            for (EgaPath p : contents) {
-                if (p.getName().equals(nextName)) {
-                    return p.find(rest);
-                }
+            if (start == path.length()) {
+                return p;
+            }
+            int end = path.indexOf('/', start);
+            end = end < 0 ? path.length() : end;
+            p = p instanceof EgaDirectory ? ((EgaDirectory) p).lookup(path, start, end) : null;
+            start = end;
+        }
+        return null;
+    }
+
+    private EgaPath lookup(String path, int start, int end) {
+        EgaPath p = child(path, start, end);
+        if (p == null && load()) {
+            p = child(path, start, end);
+        }
+        return p;
+    }
+
+    private EgaPath child(String path, int start, int end) {
+        EgaPath[] entries = contents;
+        int low = 0;
+        int high = entries.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compare(entries[middle].getName(), path, start, end);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return entries[middle];
             }
         }
         return null;
     }
 
+    /**
+     * Compares a name with a segment of a path in the order of
+     * {@link String#compareTo(String)}.
+     */
+    private static int compare(String name, String path, int start, int end) {
+        int length = Math.min(name.length(), end - start);
+        for (int i = 0; i < length; i++) {
+            char c = name.charAt(i);
+            char other = path.charAt(start + i);
+            if (c != other) {
+                return c - other;
+            }
+        }
+        return name.length() - (end - start);
+    }
+
     @Override
     public void getattr(FileStat stat) {
         stat.st_mode.set(FileStat.S_IFDIR | 0444);
     }
 
-    public synchronized void read(Pointer buf, FuseFillDir filler) {
-        if (contents.size() == 0) {
+    public void read(Pointer buf, FuseFillDir filler) {
+        load();
+        for (EgaPath p : contents) {
+            filler.apply(buf, p.getName(), null, 0);
+        }
+    }
+
+    /**
+     * Loads the entries of a root or dataset directory from the listing of its
+     * service, callers arriving during a load wait for it instead of loading
+     * again. Directories whose entries were added directly are left as they are.
+     *
+     * @return whether the entries were replaced by this call
+     */
+    private boolean load() {
+        if (egaDatasetService == null || (listing == null && contents.length > 0)) {
+            return false;
+        }
+        synchronized (this) {
+            if (listing == null && contents.length > 0) {
+                return false;
+            }
             if ("Datasets".equalsIgnoreCase(getName())) {
-                egaDatasetService.getDatasets().forEach(this::add);
+                List<EgaDirectory> datasets = egaDatasetService.getDatasets();
+                if (isUnchanged(datasets)) {
+                    return false;
+                }
+                setContents(keepLoaded(datasets));
+                listing = datasets;
             } else {
                 List<EgaFile> egaFiles = egaFileService.getFiles(this);
-
+                if (isUnchanged(egaFiles)) {
+                    return false;
+                }
                 if (isTreeStructureEnable)
                     egaDatasetService.buildSubDirectoryFromFilePath(egaFiles, this);
                 else
-                    egaFiles.stream().forEach(this::add);
+                    setContents(egaFiles);
+                listing = egaFiles;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A refreshed listing lists the same entries as the one loaded when the
+     * names, and for files the file ids and paths, are the same in the same
+     * order. It is kept so that the next refresh is compared against it.
+     */
+    private boolean isUnchanged(List<? extends EgaPath> fetched) {
+        List<? extends EgaPath> loaded = listing;
+        if (fetched == loaded) {
+            return true;
+        }
+        if (loaded == null || fetched.size() != loaded.size()) {
+            return false;
+        }
+        for (int i = 0; i < fetched.size(); i++) {
+            if (!isSameEntry(fetched.get(i), loaded.get(i))) {
+                return false;
             }
         }
+        listing = fetched;
+        return true;
+    }
+
+    private static boolean isSameEntry(EgaPath fetched, EgaPath loaded) {
+        if (!fetched.getName().equals(loaded.getName())) {
+            return false;
+        }
+        if (!(fetched instanceof EgaFile) || !(loaded instanceof EgaFile)) {
+            return fetched.getClass() == loaded.getClass();
+        }
+        File fetchedFile = ((EgaFile) fetched).getFile();
+        File loadedFile = ((EgaFile) loaded).getFile();
+        return fetchedFile == loadedFile || (fetchedFile != null && loadedFile != null
+                && Objects.equals(fetchedFile.getFileId(), loadedFile.getFileId())
+                && Objects.equals(fetchedFile.getFilePath(), loadedFile.getFilePath()));
+    }
 
+    /**
+     * Datasets that are still listed keep their directory, with the files
+     * already loaded into it.
+     */
+    private List<EgaPath> keepLoaded(List<EgaDirectory> datasets) {
+        Map<String, EgaPath> current = new HashMap<>();
         for (EgaPath p : contents) {
-            filler.apply(buf, p.getName(), null, 0);
+            current.put(p.getName(), p);
+        }
+        List<EgaPath> updated = new ArrayList<>(datasets.size());
+        for (EgaDirectory dataset : datasets) {
+            updated.add(current.getOrDefault(dataset.getName(), dataset));
         }
+        return updated;
     }
 }
@@ -0,0 +1,227 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ebi.ega.egafuse.model.CacheKey;
+
+/**
+ * Second level chunk cache on local disk, one file per chunk under
+ * {@code <cacheDirectory>/<fileId>/<startCoordinate>-<length>.chunk}.
+ * Chunks are written to a temporary file, synced and atomically renamed, so a
+ * chunk file only exists once it is complete. The directory itself is the
+ * index: it is scanned on startup, left-over temporary files are removed and
+ * the last-modified time of each chunk restores the LRU order.
+ * <p>
+ * File ids come from the server and name a directory, ids that could name
+ * anything but a single directory below the cache directory are not cached.
+ */
+public class EgaDiskChunkCache implements IEgaDiskChunkCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EgaDiskChunkCache.class);
+    private static final String CHUNK_SUFFIX = ".chunk";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final Pattern FILE_ID = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9._-]*");
+    private final Path cacheDirectory;
+    private final long maxSizeBytes;
+    // access ordered, the first entry is the least recently used chunk
+    private final LinkedHashMap<Path, Long> chunkSizes = new LinkedHashMap<>(16, 0.75f, true);
+    private long sizeBytes;
+
+    public EgaDiskChunkCache(Path cacheDirectory, long maxSizeBytes) throws IOException {
+        this.cacheDirectory = cacheDirectory;
+        this.maxSizeBytes = maxSizeBytes;
+        Files.createDirectories(cacheDirectory);
+        loadIndex();
+    }
+
+    @Override
+    public EgaChunk get(CacheKey cacheKey) throws IOException {
+        Path chunkPath = getChunkPath(cacheKey);
+        synchronized (this) {
+            if (chunkPath == null || chunkSizes.get(chunkPath) == null) {
+                return null;
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(chunkPath, StandardOpenOption.READ)) {
+            if (channel.size() != cacheKey.getChunkBytesToRead()) {
+                LOGGER.warn("Discarding disk cached chunk {} with unexpected size {}", chunkPath, channel.size());
+                remove(chunkPath);
+                return null;
+            }
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            Files.setLastModifiedTime(chunkPath, FileTime.fromMillis(System.currentTimeMillis()));
+            return new DirectEgaChunk(data);
+        } catch (IOException e) {
+            // the chunk may have been evicted between the lookup and the open
+            LOGGER.warn("Unable to read disk cached chunk {} - {}", chunkPath, e.getMessage());
+            remove(chunkPath);
+            return null;
+        }
+    }
+
+    @Override
+    public void put(CacheKey cacheKey, EgaChunk chunk) throws IOException {
+        long chunkSize = chunk.getLength();
+        if (chunkSize > maxSizeBytes) {
+            return;
+        }
+
+        Path chunkPath = getChunkPath(cacheKey);
+        if (chunkPath == null) {
+            LOGGER.warn("Not caching chunk {} on disk, its file id can not be used as a directory name", cacheKey);
+            return;
+        }
+        Files.createDirectories(chunkPath.getParent());
+        Path tempPath = chunkPath.resolveSibling(chunkPath.getFileName() + "." + UUID.randomUUID() + TEMP_SUFFIX);
+        try {
+            try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE)) {
+                ByteBuffer data = chunk.asByteBuffer();
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+                channel.force(true);
+            }
+            Files.move(tempPath, chunkPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+
+        List<Path> evicted;
+        synchronized (this) {
+            Long previousSize = chunkSizes.put(chunkPath, chunkSize);
+            sizeBytes += chunkSize - (previousSize == null ? 0 : previousSize);
+            evicted = evictOverBudget();
+        }
+        deleteChunks(evicted);
+    }
+
+    @Override
+    public void remove(CacheKey cacheKey) {
+        Path chunkPath = getChunkPath(cacheKey);
+        if (chunkPath != null) {
+            remove(chunkPath);
+        }
+    }
+
+    private void loadIndex() throws IOException {
+        List<Path> chunkPaths;
+        try (Stream<Path> files = Files.walk(cacheDirectory, 2)) {
+            chunkPaths = files.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+
+        List<Path> cachedChunks = new ArrayList<>();
+        for (Path path : chunkPaths) {
+            String fileName = path.getFileName().toString();
+            if (fileName.endsWith(TEMP_SUFFIX)) {
+                // interrupted write from a previous run
+                Files.deleteIfExists(path);
+            } else if (fileName.endsWith(CHUNK_SUFFIX)) {
+                cachedChunks.add(path);
+            }
+        }
+        cachedChunks.sort(Comparator.comparing(EgaDiskChunkCache::lastModifiedTime));
+
+        List<Path> evicted;
+        synchronized (this) {
+            for (Path path : cachedChunks) {
+                long chunkSize = Files.size(path);
+                chunkSizes.put(path, chunkSize);
+                sizeBytes += chunkSize;
+            }
+            evicted = evictOverBudget();
+        }
+        deleteChunks(evicted);
+        LOGGER.info("Disk cache {} holds {} chunks, {} bytes", cacheDirectory, chunkSizes.size(), sizeBytes);
+    }
+
+    private List<Path> evictOverBudget() {
+        List<Path> evicted = new ArrayList<>();
+        Iterator<Map.Entry<Path, Long>> leastRecentlyUsed = chunkSizes.entrySet().iterator();
+        while (sizeBytes > maxSizeBytes && leastRecentlyUsed.hasNext()) {
+            Map.Entry<Path, Long> entry = leastRecentlyUsed.next();
+            sizeBytes -= entry.getValue();
+            evicted.add(entry.getKey());
+            leastRecentlyUsed.remove();
+        }
+        return evicted;
+    }
+
+    private void remove(Path chunkPath) {
+        synchronized (this) {
+            Long chunkSize = chunkSizes.remove(chunkPath);
+            if (chunkSize != null) {
+                sizeBytes -= chunkSize;
+            }
+        }
+        deleteChunks(Collections.singletonList(chunkPath));
+    }
+
+    private void deleteChunks(List<Path> chunkPaths) {
+        for (Path chunkPath : chunkPaths) {
+            try {
+                Files.deleteIfExists(chunkPath);
+            } catch (IOException e) {
+                LOGGER.warn("Unable to delete disk cached chunk {} - {}", chunkPath, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the path of the chunk, null when its file id is not a plain name
+     */
+    private Path getChunkPath(CacheKey cacheKey) {
+        if (!FILE_ID.matcher(cacheKey.getFileId()).matches()) {
+            return null;
+        }
+        return cacheDirectory.resolve(cacheKey.getFileId()).resolve(
+                cacheKey.getStartCoordinate() + "-" + cacheKey.getChunkBytesToRead() + CHUNK_SUFFIX);
+    }
+
+    private static FileTime lastModifiedTime(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+}
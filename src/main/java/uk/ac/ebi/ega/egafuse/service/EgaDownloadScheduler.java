@@ -0,0 +1,368 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ebi.ega.egafuse.model.CacheKey;
+
+/**
+ * Runs chunk downloads on a fixed number of connections. Downloads a reader is
+ * waiting for always go before speculative prefetches, prefetches wait in a
+ * bounded queue and can be cancelled, queued or running, once the reader that
+ * asked for them has moved elsewhere or closed the file. No file gets more
+ * than its share of connections, the next download is taken from the file
+ * with the fewest downloads running. Only demand downloads count against the
+ * share of a demand download, so prefetches of a file never hold back its
+ * reader. The number of downloads running at once follows the limit of the
+ * {@link EgaConcurrencyTuner}, and no download starts while the
+ * {@link EgaCircuitBreaker} is open. A download waiting out the backoff before
+ * a retry stays known to the scheduler, it can be promoted or cancelled like a
+ * queued one.
+ * <p>
+ * Blocking downloads run on a pool of one thread per connection, non-blocking
+ * downloads are only started here and hold no thread of the scheduler while
+ * they are in flight.
+ */
+public class EgaDownloadScheduler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EgaDownloadScheduler.class);
+    private final int connections;
+    private final int connectionsPerFile;
+    private final int maxQueuedPrefetches;
+    private final EgaConcurrencyTuner concurrencyTuner;
+    private final EgaCircuitBreaker circuitBreaker;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService dispatchTimer;
+    private final Deque<DownloadTask> demandQueue = new ArrayDeque<>();
+    private final Deque<DownloadTask> prefetchQueue = new ArrayDeque<>();
+    private final Map<CacheKey, DownloadTask> pendingTasks = new HashMap<>();
+    private final Map<String, Integer> runningPerFile = new HashMap<>();
+    private final Map<String, Integer> runningDemandPerFile = new HashMap<>();
+    private int running;
+    private boolean dispatchScheduled;
+
+    public enum Priority {
+        DEMAND, PREFETCH
+    }
+
+    public EgaDownloadScheduler(int connections, int connectionsPerFile, int maxQueuedPrefetches) {
+        this(connections, connectionsPerFile, maxQueuedPrefetches,
+                new EgaConcurrencyTuner(connections, connections, false), new EgaCircuitBreaker(Integer.MAX_VALUE, 0));
+    }
+
+    public EgaDownloadScheduler(int connections, int connectionsPerFile, int maxQueuedPrefetches,
+            EgaConcurrencyTuner concurrencyTuner, EgaCircuitBreaker circuitBreaker) {
+        this.connections = connections;
+        this.connectionsPerFile = Math.max(connectionsPerFile, 1);
+        this.maxQueuedPrefetches = maxQueuedPrefetches;
+        this.concurrencyTuner = concurrencyTuner;
+        this.circuitBreaker = circuitBreaker;
+        AtomicInteger workerCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Math.max(connections, 1), runnable -> {
+            Thread worker = new Thread(runnable, "chunk-download-" + workerCount.getAndIncrement());
+            worker.setDaemon(true);
+            return worker;
+        });
+        this.dispatchTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "chunk-download-dispatch");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues a download, or cancels it straight away when it is a prefetch and
+     * the prefetch queue is full.
+     */
+    public void submit(DownloadTask task) {
+        boolean queued = false;
+        synchronized (this) {
+            if (task.priority == Priority.DEMAND || prefetchQueue.size() < maxQueuedPrefetches) {
+                (task.priority == Priority.DEMAND ? demandQueue : prefetchQueue).addLast(task);
+                for (CacheKey cacheKey : task.cacheKeys) {
+                    pendingTasks.put(cacheKey, task);
+                }
+                queued = true;
+            }
+        }
+        if (queued) {
+            dispatch();
+        } else {
+            LOGGER.debug("Prefetch queue is full, dropping prefetch of {}", task.cacheKeys);
+            task.onCancel.run();
+        }
+    }
+
+    /**
+     * Queues a download once the delay has passed, until then it counts as
+     * pending for {@link #promote(CacheKey)} and {@link #cancel(long)}.
+     */
+    public void submit(DownloadTask task, long delayMillis) {
+        synchronized (this) {
+            task.delayed = true;
+            for (CacheKey cacheKey : task.cacheKeys) {
+                pendingTasks.put(cacheKey, task);
+            }
+        }
+        dispatchTimer.schedule(() -> {
+            synchronized (this) {
+                if (!task.delayed) {
+                    // promoted or cancelled in the meantime
+                    return;
+                }
+                task.delayed = false;
+            }
+            submit(task);
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Moves the queued prefetch holding the chunk ahead of the other
+     * prefetches, because a reader is now waiting for it. A download waiting
+     * for its retry is queued at once.
+     */
+    public void promote(CacheKey cacheKey) {
+        boolean queued = false;
+        synchronized (this) {
+            DownloadTask task = pendingTasks.get(cacheKey);
+            if (task == null) {
+                return;
+            }
+            if (task.delayed) {
+                task.delayed = false;
+                task.priority = Priority.DEMAND;
+                demandQueue.addLast(task);
+                queued = true;
+            } else if (task.priority == Priority.PREFETCH) {
+                task.priority = Priority.DEMAND;
+                if (task.started) {
+                    countDemand(task);
+                } else if (prefetchQueue.remove(task)) {
+                    demandQueue.addLast(task);
+                }
+            }
+        }
+        if (queued) {
+            dispatch();
+        }
+    }
+
+    /**
+     * Cancels the prefetches requested by the given owner. Queued ones are
+     * dropped, running ones are asked to abort, which they may decline while
+     * other readers are waiting for the chunks they fill.
+     */
+    public void cancel(long owner) {
+        List<DownloadTask> cancelled = new ArrayList<>();
+        List<DownloadTask> aborted = new ArrayList<>();
+        synchronized (this) {
+            Set<DownloadTask> tasks = new LinkedHashSet<>(pendingTasks.values());
+            for (DownloadTask task : tasks) {
+                if (task.owner != owner || task.priority != Priority.PREFETCH) {
+                    continue;
+                }
+                if (task.started) {
+                    aborted.add(task);
+                } else {
+                    task.delayed = false;
+                    prefetchQueue.remove(task);
+                    removePending(task);
+                    cancelled.add(task);
+                }
+            }
+        }
+        for (DownloadTask task : cancelled) {
+            task.onCancel.run();
+        }
+        for (DownloadTask task : aborted) {
+            task.onAbort.run();
+        }
+    }
+
+    public synchronized int getQueuedPrefetches() {
+        return prefetchQueue.size();
+    }
+
+    private void dispatch() {
+        List<DownloadTask> started = new ArrayList<>();
+        synchronized (this) {
+            DownloadTask task;
+            while ((task = next()) != null) {
+                task.started = true;
+                running++;
+                runningPerFile.merge(task.getFileId(), 1, Integer::sum);
+                if (task.priority == Priority.DEMAND) {
+                    countDemand(task);
+                }
+                started.add(task);
+            }
+            long openMillis = circuitBreaker.getOpenMillisRemaining();
+            if (openMillis > 0 && !dispatchScheduled && !(demandQueue.isEmpty() && prefetchQueue.isEmpty())) {
+                // queued downloads are looked at again once the circuit may let requests through
+                dispatchScheduled = true;
+                dispatchTimer.schedule(() -> {
+                    synchronized (this) {
+                        dispatchScheduled = false;
+                    }
+                    dispatch();
+                }, openMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        for (DownloadTask task : started) {
+            start(task);
+        }
+    }
+
+    private void start(DownloadTask task) {
+        CompletableFuture<Void> download;
+        if (task.nonBlockingDownload == null) {
+            download = CompletableFuture.runAsync(task.download, workers);
+        } else {
+            try {
+                download = task.nonBlockingDownload.get();
+            } catch (RuntimeException e) {
+                download = new CompletableFuture<>();
+                download.completeExceptionally(e);
+            }
+        }
+        download.whenComplete((result, e) -> {
+            if (e != null) {
+                LOGGER.error("Download of {} failed - {}", task.cacheKeys, e.getMessage(), e);
+            }
+            finish(task);
+        });
+    }
+
+    private void finish(DownloadTask task) {
+        synchronized (this) {
+            removePending(task);
+            running--;
+            runningPerFile.computeIfPresent(task.getFileId(), (fileId, running) -> running > 1 ? running - 1 : null);
+            if (task.countedAsDemand) {
+                runningDemandPerFile.computeIfPresent(task.getFileId(),
+                        (fileId, running) -> running > 1 ? running - 1 : null);
+            }
+        }
+        // a file dropping below its share, or a raised limit, may unblock queued downloads
+        dispatch();
+    }
+
+    private DownloadTask next() {
+        if (running >= Math.min(concurrencyTuner.getLimit(), connections) || !circuitBreaker.allowsRequest(running)) {
+            return null;
+        }
+        DownloadTask task = nextFairShare(demandQueue, runningDemandPerFile);
+        return task != null ? task : nextFairShare(prefetchQueue, runningPerFile);
+    }
+
+    private DownloadTask nextFairShare(Deque<DownloadTask> queue, Map<String, Integer> runningPerFile) {
+        DownloadTask next = null;
+        int nextRunning = connectionsPerFile;
+        for (DownloadTask task : queue) {
+            int running = runningPerFile.getOrDefault(task.getFileId(), 0);
+            if (running < nextRunning) {
+                next = task;
+                nextRunning = running;
+            }
+        }
+        if (next != null) {
+            queue.remove(next);
+        }
+        return next;
+    }
+
+    private void countDemand(DownloadTask task) {
+        task.countedAsDemand = true;
+        runningDemandPerFile.merge(task.getFileId(), 1, Integer::sum);
+    }
+
+    private void removePending(DownloadTask task) {
+        for (CacheKey cacheKey : task.cacheKeys) {
+            pendingTasks.remove(cacheKey, task);
+        }
+    }
+
+    public static class DownloadTask {
+        private final long owner;
+        private final List<CacheKey> cacheKeys;
+        private final Runnable download;
+        private final Supplier<CompletableFuture<Void>> nonBlockingDownload;
+        private final Runnable onCancel;
+        private final Runnable onAbort;
+        private Priority priority;
+        private boolean started;
+        private boolean countedAsDemand;
+        private boolean delayed;
+
+        public DownloadTask(long owner, Priority priority, List<CacheKey> cacheKeys, Runnable download,
+                Runnable onCancel) {
+            this(owner, priority, cacheKeys, download, onCancel, () -> {
+            });
+        }
+
+        /**
+         * @param onCancel run when the task is cancelled before it started
+         * @param onAbort  run when the task is cancelled while it is running
+         */
+        public DownloadTask(long owner, Priority priority, List<CacheKey> cacheKeys, Runnable download,
+                Runnable onCancel, Runnable onAbort) {
+            this(owner, priority, cacheKeys, download, null, onCancel, onAbort);
+        }
+
+        private DownloadTask(long owner, Priority priority, List<CacheKey> cacheKeys, Runnable download,
+                Supplier<CompletableFuture<Void>> nonBlockingDownload, Runnable onCancel, Runnable onAbort) {
+            this.owner = owner;
+            this.priority = priority;
+            this.cacheKeys = cacheKeys;
+            this.download = download;
+            this.nonBlockingDownload = nonBlockingDownload;
+            this.onCancel = onCancel;
+            this.onAbort = onAbort;
+        }
+
+        /**
+         * A download that is only started by the scheduler, it holds its
+         * connection until the returned future completes.
+         */
+        public static DownloadTask nonBlocking(long owner, Priority priority, List<CacheKey> cacheKeys,
+                Supplier<CompletableFuture<Void>> download, Runnable onCancel, Runnable onAbort) {
+            return new DownloadTask(owner, priority, cacheKeys, null, download, onCancel, onAbort);
+        }
+
+        private String getFileId() {
+            return cacheKeys.get(0).getFileId();
+        }
+    }
+}
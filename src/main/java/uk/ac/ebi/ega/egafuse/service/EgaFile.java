@@ -41,12 +41,16 @@ public class EgaFile extends EgaPath {
         stat.st_size.set(file.getFileSize());
     }
 
-    public int read(Pointer buffer, long size, long offset) {
-        return egaChunkBufferService.fillBuffer(buffer, file.getFileId(), file.getFileSize(), size, offset);
+    public int read(Pointer buffer, long size, long offset, long handle) {
+        return egaChunkBufferService.fillBuffer(buffer, handle, file.getFileId(), file.getFileSize(), size, offset);
     }
 
-    public int open() {
-        return 0;
+    public long open() {
+        return egaChunkBufferService.open();
+    }
+
+    public void release(long handle) {
+        egaChunkBufferService.release(handle);
     }
     
     public File getFile() {
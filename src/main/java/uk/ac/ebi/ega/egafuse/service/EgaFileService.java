@@ -41,39 +41,74 @@ public class EgaFileService implements IEgaFileService {
     private Token token;
     private ObjectMapper mapper;
     private IEgaChunkBufferService egaChunkBufferService;
+    private EgaChecksumVerifier checksumVerifier;
+    private EgaMetadataCache<String, List<EgaFile>> metadataCache;
 
     public EgaFileService(OkHttpClient okHttpClient, String apiURL, Token token,
             IEgaChunkBufferService egaChunkBufferService) {
+        this(okHttpClient, apiURL, token, egaChunkBufferService, new EgaChecksumVerifier(false, 0),
+                new EgaMetadataCache<>(Long.MAX_VALUE, 0, 0));
+    }
+
+    public EgaFileService(OkHttpClient okHttpClient, String apiURL, Token token,
+            IEgaChunkBufferService egaChunkBufferService, EgaChecksumVerifier checksumVerifier,
+            EgaMetadataCache<String, List<EgaFile>> metadataCache) {
         this.okHttpClient = okHttpClient;
         this.apiURL = apiURL;
         this.token = token;
         this.mapper = new ObjectMapper();
         this.egaChunkBufferService = egaChunkBufferService;
+        this.checksumVerifier = checksumVerifier;
+        this.metadataCache = metadataCache;
     }
 
     @Override
     public List<EgaFile> getFiles(EgaDirectory egaDirectory) {
-        String datasetId = egaDirectory.getName();
-        if (datasetId.endsWith("/")) {
-            datasetId = datasetId.substring(0, datasetId.length() - 1);
+        return metadataCache.get(toDatasetId(egaDirectory.getName()), this::fetchFiles, Collections.emptyList());
+    }
+
+    /**
+     * Files of a dataset as they were kept earlier, served until they are
+     * fetched again.
+     */
+    void restore(String datasetId, List<File> files) {
+        List<EgaFile> egaFiles = new ArrayList<>(files.size());
+        for (File file : files) {
+            egaFiles.add(toEgaFile(file));
         }
+        metadataCache.seed(toDatasetId(datasetId), egaFiles);
+    }
 
-        try {
-            Request fileRequest = new Request.Builder()
-                    .url(apiURL.concat("/metadata/datasets/").concat(datasetId).concat("/files"))
-                    .addHeader("Authorization", "Bearer " + token.getBearerToken()).build();
-
-            try (Response response = okHttpClient.newCall(fileRequest).execute()) {
-                return buildResponseGetFiles(response);
-            } catch (IOException e) {
-                throw new IOException("Unable to execute request. Can be retried.", e);
-            } catch (ClientProtocolException e) {
-                throw e;
-            }
-        } catch (Exception e) {
-            LOGGER.error("Error in get dataset - {}", e.getMessage(), e);
+    /**
+     * Files of a dataset as they are cached, null when they have not been
+     * loaded.
+     */
+    List<File> getCachedFiles(String datasetId) {
+        List<EgaFile> egaFiles = metadataCache.getIfPresent(toDatasetId(datasetId));
+        if (egaFiles == null) {
+            return null;
+        }
+        List<File> files = new ArrayList<>(egaFiles.size());
+        for (EgaFile egaFile : egaFiles) {
+            files.add(egaFile.getFile());
+        }
+        return files;
+    }
+
+    EgaMetadataCache<String, List<EgaFile>> getMetadataCache() {
+        return metadataCache;
+    }
+
+    private List<EgaFile> fetchFiles(String datasetId) throws IOException, ClientProtocolException {
+        Request fileRequest = new Request.Builder()
+                .url(apiURL.concat("/metadata/datasets/").concat(datasetId).concat("/files"))
+                .addHeader("Authorization", "Bearer " + token.getBearerToken()).build();
+
+        try (Response response = okHttpClient.newCall(fileRequest).execute()) {
+            return buildResponseGetFiles(response);
+        } catch (IOException e) {
+            throw new IOException("Unable to execute request. Can be retried.", e);
         }
-        return Collections.emptyList();
     }
 
     private List<EgaFile> buildResponseGetFiles(final Response response) throws IOException, ClientProtocolException {
@@ -85,16 +120,11 @@ public class EgaFileService implements IEgaFileService {
             List<EgaFile> egaFiles = new ArrayList<>();
             for (File file : files) {
                 String filename = file.getFileName();
-                String displayFilename = file.getDisplayFileName();
 
                 if (filename.toLowerCase().endsWith(".cip")) {
-                    if (displayFilename.contains("/")) {
-                        displayFilename = displayFilename.substring(displayFilename.lastIndexOf("/") + 1);
-                    }
-
                     // The initial 16 bytes are IV that is not part of decrypted file data so we remove it from the file size.
                     file.setFileSize(file.getFileSize() - 16);
-                    egaFiles.add(new EgaFile(displayFilename, file, egaChunkBufferService));
+                    egaFiles.add(toEgaFile(file));
                 }
             }
             return egaFiles;
@@ -103,4 +133,17 @@ public class EgaFileService implements IEgaFileService {
             throw new ClientProtocolException(response.body().string());
         }
     }
+
+    private static String toDatasetId(String datasetName) {
+        return datasetName.endsWith("/") ? datasetName.substring(0, datasetName.length() - 1) : datasetName;
+    }
+
+    private EgaFile toEgaFile(File file) {
+        String displayFilename = file.getDisplayFileName();
+        if (displayFilename.contains("/")) {
+            displayFilename = displayFilename.substring(displayFilename.lastIndexOf("/") + 1);
+        }
+        checksumVerifier.register(file);
+        return new EgaFile(displayFilename, file, egaChunkBufferService);
+    }
 }
@@ -18,6 +18,8 @@
 package uk.ac.ebi.ega.egafuse.service;
 
 import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import jnr.ffi.Pointer;
 import jnr.ffi.types.off_t;
@@ -28,19 +30,30 @@ import ru.serce.jnrfuse.FuseStubFS;
 import ru.serce.jnrfuse.struct.FileStat;
 import ru.serce.jnrfuse.struct.FuseFileInfo;
 
+/**
+ * Open files are kept in a table under the handle given to the kernel, reads
+ * and releases find their file through the handle without resolving the path
+ * again.
+ */
 public class EgaFuse extends FuseStubFS {
     private String mountPath;
     private EgaDirectory rootDirectory;
+    private EgaMountOptions mountOptions;
+    private Map<Long, EgaFile> openFiles = new ConcurrentHashMap<>();
 
     public EgaFuse(EgaDirectory rootDirectory, String mountPath) {
+        this(rootDirectory, mountPath, new EgaMountOptions(1, 1, 0, false, 0, 0, ""));
+    }
+
+    public EgaFuse(EgaDirectory rootDirectory, String mountPath, EgaMountOptions mountOptions) {
         this.rootDirectory = rootDirectory;
         this.mountPath = mountPath;
+        this.mountOptions = mountOptions;
     }
     
     public void start() {
         try {
-            String[] args_ = new String[] { "-o", "allow_other" };
-            this.mount(Paths.get(mountPath), true, false, args_);
+            this.mount(Paths.get(mountPath), true, false, mountOptions.toArgs());
         } finally {
             this.umount();
         }
@@ -75,14 +88,12 @@ public class EgaFuse extends FuseStubFS {
 
     @Override
     public int read(String path, Pointer buf, @size_t long size, @off_t long offset, FuseFileInfo fi) {
-        EgaPath p = getPath(path);
-        if (p == null) {
-            return -ErrorCodes.ENOENT();
-        }
-        if (!(p instanceof EgaFile)) {
-            return -ErrorCodes.EISDIR();
+        long handle = fi.fh.get();
+        EgaFile file = openFiles.get(handle);
+        if (file == null) {
+            return -ErrorCodes.EBADF();
         }
-        return ((EgaFile) p).read(buf, size, offset);
+        return file.read(buf, size, offset, handle);
     }
 
     @Override
@@ -104,7 +115,20 @@ public class EgaFuse extends FuseStubFS {
         if (!(p instanceof EgaFile)) {
             return -ErrorCodes.EISDIR();
         } else {
-            ((EgaFile) p).open();
+            EgaFile file = (EgaFile) p;
+            long handle = file.open();
+            openFiles.put(handle, file);
+            fi.fh.set(handle);
+        }
+        return 0;
+    }
+
+    @Override
+    public int release(String path, FuseFileInfo fi) {
+        long handle = fi.fh.get();
+        EgaFile file = openFiles.remove(handle);
+        if (file != null) {
+            file.release(handle);
         }
         return 0;
     }
@@ -0,0 +1,96 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import java.util.Arrays;
+
+/**
+ * Decides when a slow download deserves a duplicate request. The delay is a
+ * percentile of the time per byte of recent downloads, scaled to the size of
+ * the download, and hedged requests may only add up to a fraction of the bytes
+ * downloaded so far. No more than a fixed number of hedged requests run at
+ * once.
+ */
+public class EgaHedgingPolicy {
+    private static final int WINDOW = 64;
+    private static final int MIN_SAMPLES = 16;
+    private final boolean enabled;
+    private final double percentile;
+    private final double maxExtraTraffic;
+    private final int maxConcurrentHedges;
+    private final double[] nanosPerByte = new double[WINDOW];
+    private int samples;
+    private int nextSample;
+    private long downloadedBytes;
+    private long hedgedBytes;
+
+    public EgaHedgingPolicy(boolean enabled, double percentile, double maxExtraTraffic, int maxConcurrentHedges) {
+        this.enabled = enabled;
+        this.percentile = percentile;
+        this.maxExtraTraffic = maxExtraTraffic;
+        this.maxConcurrentHedges = Math.max(maxConcurrentHedges, 1);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getMaxConcurrentHedges() {
+        return maxConcurrentHedges;
+    }
+
+    public synchronized void onComplete(long bytes, long durationNanos) {
+        if (bytes <= 0) {
+            return;
+        }
+        nanosPerByte[nextSample] = (double) durationNanos / bytes;
+        nextSample = (nextSample + 1) % WINDOW;
+        samples = Math.min(samples + 1, WINDOW);
+        downloadedBytes += bytes;
+    }
+
+    /**
+     * Returns how long a download of {@code bytes} may run before it is hedged,
+     * or -1 while there are too few timings to tell what slow means.
+     */
+    public synchronized long getHedgeDelayNanos(long bytes) {
+        if (!enabled || samples < MIN_SAMPLES) {
+            return -1;
+        }
+        double[] sorted = Arrays.copyOf(nanosPerByte, samples);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * samples) - 1;
+        return (long) (sorted[Math.max(0, Math.min(index, samples - 1))] * bytes);
+    }
+
+    /**
+     * Reserves {@code bytes} of the hedging budget, returns false when the
+     * hedge would exceed it.
+     */
+    public synchronized boolean tryAcquire(long bytes) {
+        if (hedgedBytes + bytes > maxExtraTraffic * downloadedBytes) {
+            return false;
+        }
+        hedgedBytes += bytes;
+        return true;
+    }
+
+    public synchronized long getHedgedBytes() {
+        return hedgedBytes;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps metadata listings from the API. A listing older than the time to live
+ * is still returned while it is fetched again in the background, so only the
+ * very first fetch of a key makes the caller wait. Failed fetches are not
+ * repeated until a backoff that doubles with every failure has passed, in the
+ * meantime the last listing, or the fallback when there is none, is returned.
+ * Listings restored from elsewhere are served the same way and fetched again on
+ * their first use.
+ */
+public class EgaMetadataCache<K, V> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EgaMetadataCache.class);
+    private final long ttlMillis;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final Executor refreshExecutor;
+    private final LongSupplier clock;
+    private final ConcurrentMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private volatile Runnable fetchListener = () -> {
+    };
+
+    @FunctionalInterface
+    public interface Fetcher<K, V> {
+        V fetch(K key) throws Exception;
+    }
+
+    public EgaMetadataCache(long ttlMillis, long initialBackoffMillis, long maxBackoffMillis) {
+        this(ttlMillis, initialBackoffMillis, maxBackoffMillis, Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metadata-refresh");
+            thread.setDaemon(true);
+            return thread;
+        }), System::currentTimeMillis);
+    }
+
+    EgaMetadataCache(long ttlMillis, long initialBackoffMillis, long maxBackoffMillis, Executor refreshExecutor,
+            LongSupplier clock) {
+        this.ttlMillis = ttlMillis;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.refreshExecutor = refreshExecutor;
+        this.clock = clock;
+    }
+
+    /**
+     * Called after every successful fetch, on the fetching thread.
+     */
+    public void setFetchListener(Runnable fetchListener) {
+        this.fetchListener = fetchListener;
+    }
+
+    /**
+     * Adds a listing that is out of date, unless one has been fetched already.
+     */
+    public void seed(K key, V value) {
+        Entry<V> entry = entries.computeIfAbsent(key, k -> new Entry<>());
+        synchronized (entry) {
+            if (entry.value == null) {
+                entry.seeded = true;
+                entry.value = value;
+            }
+        }
+    }
+
+    /**
+     * Returns the listing without fetching it, null when there is none.
+     */
+    public V getIfPresent(K key) {
+        Entry<V> entry = entries.get(key);
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * Returns the same instance for as long as no newer listing has been
+     * fetched.
+     */
+    public V get(K key, Fetcher<K, V> fetcher, V fallback) {
+        Entry<V> entry = entries.computeIfAbsent(key, k -> new Entry<>());
+        V value = entry.value;
+        if (value == null) {
+            // concurrent first requests share one fetch
+            synchronized (entry) {
+                if (entry.value == null && clock.getAsLong() >= entry.retryAt) {
+                    fetch(key, fetcher, entry);
+                }
+                return entry.value != null ? entry.value : fallback;
+            }
+        }
+        long now = clock.getAsLong();
+        boolean stale = entry.seeded || now - entry.fetchedAt >= ttlMillis;
+        if (stale && now >= entry.retryAt && entry.refreshing.compareAndSet(false, true)) {
+            refreshExecutor.execute(() -> {
+                try {
+                    fetch(key, fetcher, entry);
+                } finally {
+                    entry.refreshing.set(false);
+                }
+            });
+        }
+        return value;
+    }
+
+    private void fetch(K key, Fetcher<K, V> fetcher, Entry<V> entry) {
+        try {
+            V value = fetcher.fetch(key);
+            entry.fetchedAt = clock.getAsLong();
+            entry.failures = 0;
+            entry.value = value;
+            entry.seeded = false;
+        } catch (Exception e) {
+            entry.failures++;
+            long backoffMillis = Math.min(maxBackoffMillis,
+                    initialBackoffMillis << Math.min(entry.failures - 1, 30));
+            entry.retryAt = clock.getAsLong() + backoffMillis;
+            LOGGER.warn("Unable to fetch metadata of {}, trying again in {} ms - {}", key, backoffMillis,
+                    e.getMessage());
+            return;
+        }
+        fetchListener.run();
+    }
+
+    private static final class Entry<V> {
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private volatile V value;
+        private volatile boolean seeded;
+        private volatile long fetchedAt;
+        private volatile long retryAt;
+        private volatile int failures;
+    }
+}
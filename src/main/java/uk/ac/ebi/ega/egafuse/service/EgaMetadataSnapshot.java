@@ -0,0 +1,251 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ebi.ega.egafuse.model.File;
+
+/**
+ * Keeps the dataset and file metadata in a local file so that a new mount can
+ * be browsed at once, and while the metadata API is unavailable. The snapshot
+ * is read through a memory mapping at startup and copied into the metadata
+ * objects the services hold, the mapping is not kept. It is served as out of
+ * date, the dataset listing is checked against the API in the background
+ * straight away and each file listing on its first use. After metadata has
+ * been fetched the snapshot is written again in the background.
+ * <p>
+ * Every distinct string is stored once in a table at the start of the file and
+ * referred to by its index, dataset ids and directory paths repeat for every
+ * file.
+ */
+public class EgaMetadataSnapshot {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EgaMetadataSnapshot.class);
+    private static final int MAGIC = 0x45474146;
+    private static final int VERSION = 1;
+    private static final long SAVE_DELAY_MILLIS = 1000;
+    private final Path path;
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean savePending = new AtomicBoolean();
+
+    public EgaMetadataSnapshot(Path path) {
+        this.path = path;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metadata-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void attach(EgaDatasetService datasetService, EgaFileService fileService) {
+        Map<String, List<File>> datasets = load();
+        if (!datasets.isEmpty()) {
+            datasetService.restore(new ArrayList<>(datasets.keySet()));
+            datasets.forEach((datasetId, files) -> {
+                if (files != null) {
+                    fileService.restore(datasetId, files);
+                }
+            });
+            LOGGER.info("Restored metadata of {} datasets from {}", datasets.size(), path);
+        }
+        Runnable saveInBackground = () -> saveInBackground(datasetService, fileService);
+        datasetService.getMetadataCache().setFetchListener(saveInBackground);
+        fileService.getMetadataCache().setFetchListener(saveInBackground);
+        executor.execute(datasetService::getDatasets);
+    }
+
+    /**
+     * Returns the file listings by dataset id in the order of the datasets, null
+     * for datasets whose files were not loaded. Every entry is copied out of the
+     * mapped file into heap objects. A missing or unreadable snapshot gives no
+     * datasets.
+     */
+    public Map<String, List<File>> load() {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                LOGGER.warn("Ignoring metadata snapshot {} of an unknown format", path);
+                return Collections.emptyMap();
+            }
+            String[] strings = new String[buffer.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            Map<String, List<File>> datasets = new LinkedHashMap<>();
+            int datasetCount = buffer.getInt();
+            for (int i = 0; i < datasetCount; i++) {
+                String datasetId = string(strings, buffer.getInt());
+                int fileCount = buffer.getInt();
+                List<File> files = fileCount < 0 ? null : new ArrayList<>(fileCount);
+                for (int j = 0; j < fileCount; j++) {
+                    File file = new File();
+                    file.setFileId(string(strings, buffer.getInt()));
+                    file.setDatasetId(string(strings, buffer.getInt()));
+                    file.setDisplayFileName(string(strings, buffer.getInt()));
+                    file.setFileName(string(strings, buffer.getInt()));
+                    file.setFilePath(string(strings, buffer.getInt()));
+                    file.setFileStatus(string(strings, buffer.getInt()));
+                    file.setUnencryptedChecksum(string(strings, buffer.getInt()));
+                    file.setUnencryptedChecksumType(string(strings, buffer.getInt()));
+                    file.setFileSize(buffer.getLong());
+                    files.add(file);
+                }
+                datasets.put(datasetId, files);
+            }
+            return datasets;
+        } catch (NoSuchFileException e) {
+            return Collections.emptyMap();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Unable to read metadata snapshot {} - {}", path, e.getMessage());
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Replaces the snapshot as a whole, a reader never sees it half written. The
+     * new file is forced to disk before it is moved into place, so a crash
+     * cannot leave an empty snapshot behind the rename.
+     */
+    public void save(Map<String, List<File>> datasets) throws IOException {
+        Map<String, Integer> indexes = new LinkedHashMap<>();
+        for (Map.Entry<String, List<File>> dataset : datasets.entrySet()) {
+            index(indexes, dataset.getKey());
+            if (dataset.getValue() != null) {
+                for (File file : dataset.getValue()) {
+                    index(indexes, file.getFileId());
+                    index(indexes, file.getDatasetId());
+                    index(indexes, file.getDisplayFileName());
+                    index(indexes, file.getFileName());
+                    index(indexes, file.getFilePath());
+                    index(indexes, file.getFileStatus());
+                    index(indexes, file.getUnencryptedChecksum());
+                    index(indexes, file.getUnencryptedChecksumType());
+                }
+            }
+        }
+
+        Path parent = path.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temporary = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                DataOutputStream output = new DataOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(channel)));
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeInt(indexes.size());
+                for (String string : indexes.keySet()) {
+                    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                    output.writeInt(bytes.length);
+                    output.write(bytes);
+                }
+                output.writeInt(datasets.size());
+                for (Map.Entry<String, List<File>> dataset : datasets.entrySet()) {
+                    output.writeInt(indexes.get(dataset.getKey()));
+                    List<File> files = dataset.getValue();
+                    output.writeInt(files == null ? -1 : files.size());
+                    if (files != null) {
+                        for (File file : files) {
+                            output.writeInt(index(indexes, file.getFileId()));
+                            output.writeInt(index(indexes, file.getDatasetId()));
+                            output.writeInt(index(indexes, file.getDisplayFileName()));
+                            output.writeInt(index(indexes, file.getFileName()));
+                            output.writeInt(index(indexes, file.getFilePath()));
+                            output.writeInt(index(indexes, file.getFileStatus()));
+                            output.writeInt(index(indexes, file.getUnencryptedChecksum()));
+                            output.writeInt(index(indexes, file.getUnencryptedChecksumType()));
+                            output.writeLong(file.getFileSize());
+                        }
+                    }
+                }
+                output.flush();
+                channel.force(true);
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Fetches arrive in bursts, they are written together a moment after the
+     * first one.
+     */
+    private void saveInBackground(EgaDatasetService datasetService, EgaFileService fileService) {
+        if (!savePending.compareAndSet(false, true)) {
+            return;
+        }
+        executor.schedule(() -> {
+            savePending.set(false);
+            List<String> datasetIds = datasetService.getCachedDatasetIds();
+            if (datasetIds == null) {
+                return;
+            }
+            Map<String, List<File>> datasets = new LinkedHashMap<>();
+            for (String datasetId : datasetIds) {
+                datasets.put(datasetId, fileService.getCachedFiles(datasetId));
+            }
+            try {
+                save(datasets);
+            } catch (IOException e) {
+                LOGGER.error("Unable to write metadata snapshot {} - {}", path, e.getMessage(), e);
+            }
+        }, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private static int index(Map<String, Integer> indexes, String string) {
+        if (string == null) {
+            return -1;
+        }
+        Integer index = indexes.get(string);
+        if (index == null) {
+            index = indexes.size();
+            indexes.put(string, index);
+        }
+        return index;
+    }
+
+    private static String string(String[] strings, int index) {
+        return index < 0 ? null : strings[index];
+    }
+}
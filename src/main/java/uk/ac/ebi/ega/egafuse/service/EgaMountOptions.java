@@ -0,0 +1,79 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Options the file system is mounted with. The files of the archive never
+ * change, so by default the kernel keeps attributes, directory entries and
+ * file pages cached instead of asking again for every stat and repeated read.
+ * The mount is not read-only by default, files can still be removed from the
+ * listing with unlink; {@code ro} can be given with the extra options.
+ */
+public class EgaMountOptions {
+    private final double attrTimeout;
+    private final double entryTimeout;
+    private final double negativeTimeout;
+    private final boolean kernelCache;
+    private final int maxRead;
+    private final int maxReadahead;
+    private final String extraOptions;
+
+    /**
+     * Timeouts are in seconds. A {@code maxRead} or {@code maxReadahead} of 0
+     * leaves the kernel default. The extra options are passed on as they are
+     * and override the ones above.
+     */
+    public EgaMountOptions(double attrTimeout, double entryTimeout, double negativeTimeout, boolean kernelCache,
+            int maxRead, int maxReadahead, String extraOptions) {
+        this.attrTimeout = attrTimeout;
+        this.entryTimeout = entryTimeout;
+        this.negativeTimeout = negativeTimeout;
+        this.kernelCache = kernelCache;
+        this.maxRead = maxRead;
+        this.maxReadahead = maxReadahead;
+        this.extraOptions = extraOptions;
+    }
+
+    public String[] toArgs() {
+        List<String> options = new ArrayList<>();
+        options.add("allow_other");
+        options.add("attr_timeout=" + format(attrTimeout));
+        options.add("entry_timeout=" + format(entryTimeout));
+        options.add("negative_timeout=" + format(negativeTimeout));
+        if (kernelCache) {
+            options.add("kernel_cache");
+        }
+        if (maxRead > 0) {
+            options.add("max_read=" + maxRead);
+        }
+        if (maxReadahead > 0) {
+            options.add("max_readahead=" + maxReadahead);
+        }
+        if (extraOptions != null && !extraOptions.trim().isEmpty()) {
+            options.add(extraOptions.trim());
+        }
+        return new String[] { "-o", String.join(",", options) };
+    }
+
+    private static String format(double seconds) {
+        return seconds == Math.rint(seconds) ? String.valueOf((long) seconds) : String.valueOf(seconds);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Readahead state of one open file handle. Like the kernel readahead, the
+ * window doubles each time the reader moves on sequentially to the next
+ * chunk and collapses when it seeks elsewhere, so streaming readers get deep
+ * prefetching while random access does not download chunks nobody reads.
+ */
+public class EgaReadahead {
+    private final long chunkSize;
+    private final int maxWindow;
+    private int window;
+    private long nextOffset;
+    private int lastReadChunk = -1;
+    private int prefetchedUpTo = -1;
+
+    public EgaReadahead(long chunkSize, int maxWindow) {
+        this.chunkSize = chunkSize;
+        this.maxWindow = maxWindow;
+    }
+
+    /**
+     * Records a read and passes the index of every chunk that should now be
+     * prefetched, and was not requested before, to prefetcher. Returns true
+     * when the read was a seek, so chunks prefetched so far are no longer
+     * wanted.
+     */
+    public synchronized boolean onRead(long offset, long bytesToRead, long fileSize, IntConsumer prefetcher) {
+        int firstChunk = (int) (offset / chunkSize);
+        int lastChunk = (int) ((offset + bytesToRead - 1) / chunkSize);
+        int lastChunkOfFile = (int) ((fileSize - 1) / chunkSize);
+
+        // the kernel may issue its own readahead out of order, so reads in the
+        // current or next chunk still count as sequential
+        boolean isContiguous = offset == nextOffset;
+        boolean isNearby = lastReadChunk != -1 && (firstChunk == lastReadChunk || firstChunk == lastReadChunk + 1);
+
+        boolean isSeek = !isContiguous && !isNearby;
+        if (isSeek) {
+            window = 0;
+            prefetchedUpTo = lastChunk;
+        } else if (lastChunk > lastReadChunk || (isContiguous && window == 0)) {
+            window = Math.min(Math.max(window * 2, 1), maxWindow);
+        }
+        lastReadChunk = lastChunk;
+        nextOffset = offset + bytesToRead;
+
+        int prefetchEnd = Math.min(lastChunk + window, lastChunkOfFile);
+        for (int chunk = Math.max(prefetchedUpTo + 1, lastChunk + 1); chunk <= prefetchEnd; chunk++) {
+            prefetcher.accept(chunk);
+        }
+        prefetchedUpTo = Math.max(prefetchedUpTo, prefetchEnd);
+        return isSeek;
+    }
+
+    public synchronized int getWindow() {
+        return window;
+    }
+}
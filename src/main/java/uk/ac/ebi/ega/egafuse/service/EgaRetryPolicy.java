@@ -0,0 +1,93 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Exponential backoff with full jitter for failed downloads, limited by a
+ * retry budget shared by all downloads. Every failure takes a token from the
+ * budget, every success gives back a tenth of one and the budget also refills
+ * at a fixed number of tokens per second. Retries stop while no whole token is
+ * left, so a short burst of failures is retried but an outage does not
+ * multiply the load on the server beyond the refill rate.
+ */
+public class EgaRetryPolicy {
+    private static final double TOKENS_PER_SUCCESS = 0.1;
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final double maxTokens;
+    private final double tokensPerNano;
+    private final DoubleSupplier random;
+    private final LongSupplier nanoClock;
+    private double tokens;
+    private long refilledNanos;
+
+    public EgaRetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis, int retryBudget,
+            double retriesPerSecond) {
+        this(maxAttempts, initialBackoffMillis, maxBackoffMillis, retryBudget, retriesPerSecond,
+                () -> ThreadLocalRandom.current().nextDouble(), System::nanoTime);
+    }
+
+    EgaRetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis, int retryBudget,
+            double retriesPerSecond, DoubleSupplier random, LongSupplier nanoClock) {
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.maxTokens = retryBudget;
+        this.tokens = retryBudget;
+        this.tokensPerNano = retriesPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.random = random;
+        this.nanoClock = nanoClock;
+        this.refilledNanos = nanoClock.getAsLong();
+    }
+
+    public synchronized void onSuccess() {
+        refill();
+        tokens = Math.min(maxTokens, tokens + TOKENS_PER_SUCCESS);
+    }
+
+    public synchronized void onFailure() {
+        refill();
+        tokens = Math.max(0, tokens - 1);
+    }
+
+    /**
+     * Returns true when a download that failed on its {@code attempt}-th
+     * attempt may be tried again.
+     */
+    public synchronized boolean canRetry(int attempt) {
+        refill();
+        return attempt < maxAttempts && tokens >= 1;
+    }
+
+    private void refill() {
+        long now = nanoClock.getAsLong();
+        tokens = Math.min(maxTokens, tokens + (now - refilledNanos) * tokensPerNano);
+        refilledNanos = now;
+    }
+
+    public long getBackoffMillis(int attempt) {
+        long backoff = initialBackoffMillis << Math.min(attempt - 1, 30);
+        return (long) (random.getAsDouble() * Math.min(maxBackoffMillis, Math.max(0, backoff)));
+    }
+}
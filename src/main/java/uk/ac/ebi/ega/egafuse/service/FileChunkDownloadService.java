@@ -17,82 +17,582 @@
  */
 package uk.ac.ebi.ega.egafuse.service;
 
-import java.io.DataInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
+import org.asynchttpclient.AsyncHandler;
+import org.asynchttpclient.AsyncHttpClient;
+import org.asynchttpclient.HttpResponseBodyPart;
+import org.asynchttpclient.HttpResponseStatus;
+import org.asynchttpclient.ListenableFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.retry.annotation.Backoff;
-import org.springframework.retry.annotation.Retryable;
 import org.springframework.web.util.UriComponentsBuilder;
 
 import com.google.common.io.CountingInputStream;
 
+import io.netty.handler.codec.http.HttpHeaders;
+import okhttp3.Call;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 import uk.ac.ebi.ega.egafuse.exception.ClientProtocolException;
+import uk.ac.ebi.ega.egafuse.exception.ServerBusyException;
 import uk.ac.ebi.ega.egafuse.model.CacheKey;
 
+/**
+ * Downloads runs of chunks with one range request each. When hedging is
+ * enabled a download that is still running after the delay given by the
+ * {@link EgaHedgingPolicy} gets a duplicate request for its remaining bytes,
+ * provided a reader is waiting for them. Whichever request completes the run
+ * first cancels the other.
+ * <p>
+ * Chunks keep the bytes that have arrived, so a retried download only
+ * requests the part of the run that is still missing.
+ * <p>
+ * Given an {@link AsyncHttpClient}, {@link #downloadChunksAsync} makes the
+ * range request without blocking: the response parts are written into the
+ * chunks on the client's I/O threads as they arrive and the returned future
+ * completes with the response, so no thread waits for a request in flight.
+ * Hedged requests still run on threads of their own.
+ * <p>
+ * Failures and throttling are reported to the {@link EgaCircuitBreaker}, which
+ * pauses the download scheduler, and throttling also halves the concurrency
+ * limit of the {@link EgaConcurrencyTuner}.
+ */
 public class FileChunkDownloadService implements IFileChunkDownloadService {
     private static final Logger LOGGER = LoggerFactory.getLogger(FileChunkDownloadService.class);
     private OkHttpClient okHttpClient;
+    private AsyncHttpClient asyncHttpClient;
     private String apiURL;
     private Token token;
+    private EgaConcurrencyTuner concurrencyTuner;
+    private EgaCircuitBreaker circuitBreaker;
+    private EgaHedgingPolicy hedgingPolicy;
+    private ScheduledExecutorService hedgeTimer;
+    private ExecutorService hedgeExecutor;
+
+    public FileChunkDownloadService(OkHttpClient okHttpClient, String apiURL, Token token,
+            EgaConcurrencyTuner concurrencyTuner) {
+        this(okHttpClient, apiURL, token, concurrencyTuner, new EgaCircuitBreaker(Integer.MAX_VALUE, 0),
+                new EgaHedgingPolicy(false, 0, 0, 1));
+    }
+
+    public FileChunkDownloadService(OkHttpClient okHttpClient, String apiURL, Token token,
+            EgaConcurrencyTuner concurrencyTuner, EgaCircuitBreaker circuitBreaker, EgaHedgingPolicy hedgingPolicy) {
+        this(okHttpClient, null, apiURL, token, concurrencyTuner, circuitBreaker, hedgingPolicy);
+    }
 
-    public FileChunkDownloadService(OkHttpClient okHttpClient, String apiURL, Token token) {
+    /**
+     * @param asyncHttpClient client for {@link #downloadChunksAsync}, or null
+     *                        to run those downloads on the calling thread
+     */
+    public FileChunkDownloadService(OkHttpClient okHttpClient, AsyncHttpClient asyncHttpClient, String apiURL,
+            Token token, EgaConcurrencyTuner concurrencyTuner, EgaCircuitBreaker circuitBreaker,
+            EgaHedgingPolicy hedgingPolicy) {
         this.okHttpClient = okHttpClient;
+        this.asyncHttpClient = asyncHttpClient;
         this.apiURL = apiURL;
         this.token = token;
+        this.concurrencyTuner = concurrencyTuner;
+        this.circuitBreaker = circuitBreaker;
+        this.hedgingPolicy = hedgingPolicy;
+        if (hedgingPolicy.isEnabled()) {
+            ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, daemonThreads("chunk-hedge-timer"));
+            timer.setRemoveOnCancelPolicy(true);
+            this.hedgeTimer = timer;
+            // hedges beyond the limit are dropped, the original request is still running
+            this.hedgeExecutor = new ThreadPoolExecutor(0, hedgingPolicy.getMaxConcurrentHedges(), 60L, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(), daemonThreads("chunk-hedge"), new ThreadPoolExecutor.DiscardPolicy());
+        }
+    }
+
+    public void downloadChunks(List<CacheKey> cacheKeys, List<EgaChunk> chunks)
+            throws IOException, ClientProtocolException {
+        downloadChunks(cacheKeys, chunks, cancel -> {
+        });
+    }
+
+    @Override
+    public void downloadChunks(List<CacheKey> cacheKeys, List<EgaChunk> chunks, Consumer<Runnable> onRequest)
+            throws IOException, ClientProtocolException {
+        RangeDownload download = new RangeDownload(cacheKeys, chunks);
+        if (download.isDone()) {
+            return;
+        }
+        Call call = download.start();
+        onRequest.accept(download::cancel);
+        try (Response response = call.execute()) {
+            download.onResponse(response);
+        } catch (IOException | ClientProtocolException e) {
+            download.onFailure(e);
+        } finally {
+            download.finish();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> downloadChunksAsync(List<CacheKey> cacheKeys, List<EgaChunk> chunks,
+            Consumer<Runnable> onRequest) {
+        if (asyncHttpClient == null) {
+            return IFileChunkDownloadService.super.downloadChunksAsync(cacheKeys, chunks, onRequest);
+        }
+        RangeDownload download = new RangeDownload(cacheKeys, chunks);
+        if (download.isDone()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        RangeResponseHandler handler = new RangeResponseHandler(download);
+        try {
+            download.startAsync(handler);
+            onRequest.accept(download::cancel);
+        } catch (IOException | RuntimeException e) {
+            handler.failToStart(e);
+        }
+        return handler.future;
     }
 
-    @Retryable(value = {IOException.class, ClientProtocolException.class}, maxAttemptsExpression = "${connection.maxAttempts}", 
-            backoff = @Backoff(delayExpression = "${connection.backoff}"))
-    public byte[] downloadChunk(CacheKey cacheKey) throws IOException, ClientProtocolException {
-        long startCoordinate = cacheKey.getStartCoordinate();
-        long bytesToRead = cacheKey.getChunkBytesToRead();
-       
+    private String buildUrl(String fileId, long startCoordinate, long endCoordinate) {
         UriComponentsBuilder builder =  UriComponentsBuilder.fromPath(apiURL
                                                             .concat("/files/"))
-                                                            .path(cacheKey.getFileId())
+                                                            .path(fileId)
                                                             .queryParam("destinationFormat", "plain")
                                                             .queryParam("startCoordinate", startCoordinate)
-                                                            .queryParam("endCoordinate", (startCoordinate + bytesToRead));
+                                                            .queryParam("endCoordinate", endCoordinate);
 
         LOGGER.info("url = " + builder.toUriString());
 
-        Request fileRequest;
-        try {
-            fileRequest = new Request.Builder().url(builder.toUriString()).addHeader("Authorization",
-                    "Bearer " + token.getBearerToken())
-                    .build();
-            try (Response response = okHttpClient.newCall(fileRequest).execute()) {
-                return buildResponseDownloadFiles(response, bytesToRead);
-            } catch (IOException e) {
-                throw new IOException("Unable to execute request. Can be retried.", e);
-            } catch (ClientProtocolException e) {
-                throw new ClientProtocolException(e.toString());
-            }
-        } catch (IOException e) {
-            LOGGER.error("Error in downloading file - {}", e.getMessage(), e);
-            throw new IOException("Unable to execute request. Can be retried.", e);
+        return builder.toUriString();
+    }
+
+    private Request buildRequest(String fileId, long startCoordinate, long endCoordinate) throws IOException {
+        return new Request.Builder().url(buildUrl(fileId, startCoordinate, endCoordinate)).addHeader("Authorization",
+                "Bearer " + token.getBearerToken())
+                .build();
+    }
+
+    private Hedge scheduleHedge(List<CacheKey> cacheKeys, List<EgaChunk> chunks, Runnable cancelPrimary,
+            long bytes) {
+        long delayNanos = hedgingPolicy.getHedgeDelayNanos(bytes);
+        if (delayNanos < 0) {
+            return null;
+        }
+        Hedge hedge = new Hedge(cacheKeys, chunks, cancelPrimary);
+        hedge.timer = hedgeTimer.schedule(() -> hedgeExecutor.execute(hedge), delayNanos, TimeUnit.NANOSECONDS);
+        return hedge;
+    }
+
+    private static int firstIncomplete(List<EgaChunk> chunks) {
+        int first = 0;
+        while (first < chunks.size() && chunks.get(first).isComplete()) {
+            first++;
         }
+        return first;
     }
 
-    private byte[] buildResponseDownloadFiles(final Response response, long bytesToRead)
+    private static boolean isComplete(List<EgaChunk> chunks) {
+        return firstIncomplete(chunks) == chunks.size();
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private void buildResponseDownloadFiles(final Response response, List<EgaChunk> chunks, int first, int position)
             throws IOException, ClientProtocolException {
         final int status = response.code();
         switch (status) {
         case 200:
         case 206:
-            byte[] buffer = new byte[(int) bytesToRead];
-            try (DataInputStream dis = new DataInputStream(response.body().byteStream())) {
-                dis.readFully(buffer);
+            try (InputStream inputStream = response.body().byteStream()) {
+                chunks.get(first).fill(inputStream, position);
+                for (int i = first + 1; i < chunks.size(); i++) {
+                    chunks.get(i).fill(inputStream);
+                }
             }
-            return buffer;
+            break;
+        case 429:
+        case 503:
+            long retryAfterMillis = parseRetryAfterMillis(response.header("Retry-After"), System.currentTimeMillis());
+            LOGGER.warn("status: {}, Retry-After: {} ms", status, retryAfterMillis);
+            throw new ServerBusyException(response.body().string(), status, retryAfterMillis);
         default:
             LOGGER.error("status: {}", status);
-            throw new ClientProtocolException(response.body().string());
+            throw new ClientProtocolException(response.body().string(), status);
+        }
+    }
+
+    /**
+     * Parses a Retry-After header given either in seconds or as an HTTP date,
+     * returns -1 when there is none or it can not be read.
+     */
+    static long parseRetryAfterMillis(String retryAfter, long nowMillis) {
+        if (retryAfter == null) {
+            return -1;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(retryAfter.trim())));
+        } catch (NumberFormatException e) {
+            try {
+                long retryAtMillis = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME)
+                        .toInstant().toEpochMilli();
+                return Math.max(0, retryAtMillis - nowMillis);
+            } catch (DateTimeParseException e2) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * One range request for the missing part of a run.
+     */
+    private class RangeDownload {
+        private final List<CacheKey> cacheKeys;
+        private final List<EgaChunk> chunks;
+        private final int first;
+        private int position;
+        private long startCoordinate;
+        private long endCoordinate;
+        private long startNanos;
+        private Runnable cancelRequest;
+        private volatile boolean cancelled;
+        private Hedge hedge;
+
+        RangeDownload(List<CacheKey> cacheKeys, List<EgaChunk> chunks) {
+            this.cacheKeys = cacheKeys;
+            this.chunks = chunks;
+            this.first = firstIncomplete(chunks);
+            if (first < chunks.size()) {
+                CacheKey lastKey = cacheKeys.get(cacheKeys.size() - 1);
+                this.position = chunks.get(first).getAvailable();
+                this.startCoordinate = cacheKeys.get(first).getStartCoordinate() + position;
+                this.endCoordinate = lastKey.getStartCoordinate() + lastKey.getChunkBytesToRead();
+            }
+        }
+
+        boolean isDone() {
+            return first == chunks.size();
+        }
+
+        Call start() throws IOException {
+            Request fileRequest = buildRequest(cacheKeys.get(first).getFileId(), startCoordinate, endCoordinate);
+            Call call = okHttpClient.newCall(fileRequest);
+            begin();
+            setRequest(call::cancel);
+            return call;
+        }
+
+        void startAsync(AsyncHandler<Void> handler) throws IOException {
+            String url = buildUrl(cacheKeys.get(first).getFileId(), startCoordinate, endCoordinate);
+            String authorization = "Bearer " + token.getBearerToken();
+            begin();
+            ListenableFuture<Void> responseFuture = asyncHttpClient.prepareGet(url)
+                    .addHeader("Authorization", authorization).execute(handler);
+            setRequest(() -> responseFuture.cancel(true));
+        }
+
+        private void begin() {
+            startNanos = System.nanoTime();
+            hedge = scheduleHedge(cacheKeys, chunks, this::cancel, endCoordinate - startCoordinate);
+        }
+
+        private synchronized void setRequest(Runnable cancelRequest) {
+            this.cancelRequest = cancelRequest;
+            if (cancelled) {
+                cancelRequest.run();
+            }
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (cancelRequest != null) {
+                cancelRequest.run();
+            }
+        }
+
+        void onResponse(Response response) throws IOException, ClientProtocolException {
+            onResponseStarted();
+            buildResponseDownloadFiles(response, chunks, first, position);
+            onComplete();
+        }
+
+        void onResponseStarted() {
+            concurrencyTuner.onResponse(System.nanoTime() - startNanos);
+        }
+
+        void onComplete() {
+            circuitBreaker.onSuccess();
+            long durationNanos = System.nanoTime() - startNanos;
+            concurrencyTuner.onComplete(endCoordinate - startCoordinate, durationNanos);
+            hedgingPolicy.onComplete(endCoordinate - startCoordinate, durationNanos);
+        }
+
+        void onFailure(Exception e) throws IOException, ClientProtocolException {
+            if (e instanceof ServerBusyException) {
+                circuitBreaker.onThrottled(((ServerBusyException) e).getRetryAfterMillis());
+                concurrencyTuner.onThrottle();
+                throw (ServerBusyException) e;
+            }
+            if (e instanceof ClientProtocolException) {
+                int status = ((ClientProtocolException) e).getStatus();
+                if (status >= 500) {
+                    circuitBreaker.onFailure();
+                }
+                concurrencyTuner.onError();
+                throw new ClientProtocolException(e.toString(), status);
+            }
+            if (isComplete(chunks)) {
+                // the hedged request won and cancelled this one, its time is still a sample of a slow download
+                LOGGER.debug("Hedged request completed chunks {} first", cacheKeys);
+                hedgingPolicy.onComplete(endCoordinate - startCoordinate, System.nanoTime() - startNanos);
+                return;
+            }
+            if (cancelled) {
+                // nobody wants the chunks any more, that says nothing about the server
+                throw new CancellationException("Download of chunks " + cacheKeys + " cancelled");
+            }
+            circuitBreaker.onFailure();
+            concurrencyTuner.onError();
+            LOGGER.error("Error in downloading file - {}", e.getMessage(), e);
+            throw new IOException("Unable to execute request. Can be retried.", e);
+        }
+
+        void finish() {
+            if (hedge != null) {
+                hedge.cancel();
+            }
+        }
+    }
+
+    /**
+     * Writes the response of a non-blocking range request into the chunks as
+     * its parts arrive and completes {@link #future} once it has ended.
+     */
+    private class RangeResponseHandler implements AsyncHandler<Void> {
+        private final RangeDownload download;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private final ByteArrayOutputStream errorBody = new ByteArrayOutputStream();
+        private int status;
+        private String retryAfter;
+        private int index;
+        private int position;
+        private boolean finished;
+
+        RangeResponseHandler(RangeDownload download) {
+            this.download = download;
+            this.index = download.first;
+            this.position = download.position;
+        }
+
+        @Override
+        public State onStatusReceived(HttpResponseStatus responseStatus) {
+            status = responseStatus.getStatusCode();
+            download.onResponseStarted();
+            return State.CONTINUE;
+        }
+
+        @Override
+        public State onHeadersReceived(HttpHeaders headers) {
+            retryAfter = headers.get("Retry-After");
+            return State.CONTINUE;
+        }
+
+        @Override
+        public State onBodyPartReceived(HttpResponseBodyPart bodyPart) {
+            if (status != 200 && status != 206) {
+                errorBody.write(bodyPart.getBodyPartBytes(), 0, bodyPart.length());
+                return State.CONTINUE;
+            }
+            ByteBuffer bytes = bodyPart.getBodyByteBuffer();
+            try {
+                List<EgaChunk> chunks = download.chunks;
+                while (bytes.hasRemaining() && index < chunks.size()) {
+                    position = chunks.get(index).fill(bytes, position);
+                    if (position == chunks.get(index).getLength()) {
+                        index++;
+                        position = 0;
+                    }
+                }
+            } catch (CancellationException e) {
+                finish(e);
+                return State.ABORT;
+            }
+            return State.CONTINUE;
+        }
+
+        @Override
+        public void onThrowable(Throwable t) {
+            finish(t);
+        }
+
+        @Override
+        public Void onCompleted() {
+            switch (status) {
+            case 200:
+            case 206:
+                finish(index < download.chunks.size()
+                        ? new EOFException("Response ended before chunks " + download.cacheKeys + " were filled")
+                        : null);
+                break;
+            case 429:
+            case 503:
+                long retryAfterMillis = parseRetryAfterMillis(retryAfter, System.currentTimeMillis());
+                LOGGER.warn("status: {}, Retry-After: {} ms", status, retryAfterMillis);
+                finish(new ServerBusyException(errorBody(), status, retryAfterMillis));
+                break;
+            default:
+                LOGGER.error("status: {}", status);
+                finish(new ClientProtocolException(errorBody(), status));
+            }
+            return null;
+        }
+
+        void failToStart(Exception e) {
+            synchronized (this) {
+                finished = true;
+            }
+            download.finish();
+            future.completeExceptionally(e);
+        }
+
+        private String errorBody() {
+            return new String(errorBody.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        private void finish(Throwable t) {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+            }
+            Throwable failure = null;
+            try {
+                if (t == null) {
+                    download.onComplete();
+                } else if (t instanceof CancellationException && !download.cancelled) {
+                    // a chunk was failed by its owner, as in the blocking download this is not the server's doing
+                    failure = t;
+                } else {
+                    download.onFailure(t instanceof Exception ? (Exception) t : new IOException(t));
+                }
+            } catch (IOException | ClientProtocolException | RuntimeException e) {
+                failure = e;
+            } finally {
+                download.finish();
+            }
+            if (failure == null) {
+                future.complete(null);
+            } else {
+                future.completeExceptionally(failure);
+            }
+        }
+    }
+
+    /**
+     * Duplicate request for the bytes of a run that are still missing.
+     */
+    private class Hedge implements Runnable {
+        private final List<CacheKey> cacheKeys;
+        private final List<EgaChunk> chunks;
+        private final Runnable cancelPrimary;
+        private volatile ScheduledFuture<?> timer;
+        private Call call;
+        private boolean cancelled;
+
+        Hedge(List<CacheKey> cacheKeys, List<EgaChunk> chunks, Runnable cancelPrimary) {
+            this.cacheKeys = cacheKeys;
+            this.chunks = chunks;
+            this.cancelPrimary = cancelPrimary;
+        }
+
+        void cancel() {
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            synchronized (this) {
+                cancelled = true;
+                if (call != null) {
+                    call.cancel();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            int first = firstIncomplete(chunks);
+            // prefetches nobody is waiting for are not worth the extra traffic, nor is a server asking for less
+            if (first == chunks.size() || !chunks.get(first).hasWaiters()
+                    || circuitBreaker.getOpenMillisRemaining() > 0) {
+                return;
+            }
+
+            // the original download may finish and release the chunks while this one is still writing
+            List<EgaChunk> retainedChunks = new ArrayList<>();
+            try {
+                for (EgaChunk chunk : chunks.subList(first, chunks.size())) {
+                    if (!chunk.retain()) {
+                        return;
+                    }
+                    retainedChunks.add(chunk);
+                }
+
+                int position = chunks.get(first).getAvailable();
+                CacheKey lastKey = cacheKeys.get(cacheKeys.size() - 1);
+                long startCoordinate = cacheKeys.get(first).getStartCoordinate() + position;
+                long endCoordinate = lastKey.getStartCoordinate() + lastKey.getChunkBytesToRead();
+                if (!hedgingPolicy.tryAcquire(endCoordinate - startCoordinate)) {
+                    LOGGER.debug("Hedging budget used up, not hedging chunks {}", cacheKeys);
+                    return;
+                }
+
+                Request request = buildRequest(lastKey.getFileId(), startCoordinate, endCoordinate);
+                Call hedgeCall;
+                synchronized (this) {
+                    if (cancelled) {
+                        return;
+                    }
+                    hedgeCall = okHttpClient.newCall(request);
+                    call = hedgeCall;
+                }
+                LOGGER.debug("Hedging download of chunks {} from byte {}", cacheKeys, startCoordinate);
+                try (Response response = hedgeCall.execute()) {
+                    buildResponseDownloadFiles(response, chunks, first, position);
+                }
+                if (isComplete(chunks)) {
+                    cancelPrimary.run();
+                }
+            } catch (ServerBusyException e) {
+                circuitBreaker.onThrottled(e.getRetryAfterMillis());
+                concurrencyTuner.onThrottle();
+            } catch (IOException | ClientProtocolException | RuntimeException e) {
+                LOGGER.debug("Hedged download of chunks {} stopped - {}", cacheKeys, e.getMessage());
+            } finally {
+                retainedChunks.forEach(EgaChunk::release);
+            }
         }
     }
 }
@@ -0,0 +1,70 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import jnr.ffi.Pointer;
+
+public class HeapEgaChunk extends EgaChunk {
+    private final byte[] data;
+    private final EgaChunkPool pool;
+
+    public HeapEgaChunk(byte[] data) {
+        this(data, true);
+    }
+
+    public HeapEgaChunk(byte[] data, boolean filled) {
+        this(data, filled, null);
+    }
+
+    public HeapEgaChunk(byte[] data, boolean filled, EgaChunkPool pool) {
+        super(data.length, filled);
+        this.data = data;
+        this.pool = pool;
+    }
+
+    @Override
+    protected void recycle() {
+        if (pool != null) {
+            pool.recycle(data);
+        }
+    }
+
+    @Override
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
+    @Override
+    public void copyTo(Pointer buffer, long bufferOffset, int chunkOffset, int bytesToCopy) {
+        buffer.put(bufferOffset, data, chunkOffset, bytesToCopy);
+    }
+
+    @Override
+    protected int read(InputStream inputStream, int position, int maxBytes) throws IOException {
+        return inputStream.read(data, position, maxBytes);
+    }
+
+    @Override
+    protected void write(ByteBuffer bytes, int position) {
+        bytes.get(data, position, bytes.remaining());
+    }
+}
@@ -20,5 +20,9 @@ package uk.ac.ebi.ega.egafuse.service;
 import jnr.ffi.Pointer;
 
 public interface IEgaChunkBufferService {
-    int fillBuffer(Pointer buffer, String fileId, long fileSize, long bytesToRead, long offset);
+    long open();
+
+    void release(long handle);
+
+    int fillBuffer(Pointer buffer, long handle, String fileId, long fileSize, long bytesToRead, long offset);
 }
\ No newline at end of file
@@ -0,0 +1,30 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import java.io.IOException;
+
+import uk.ac.ebi.ega.egafuse.model.CacheKey;
+
+public interface IEgaDiskChunkCache {
+    EgaChunk get(CacheKey cacheKey) throws IOException;
+
+    void put(CacheKey cacheKey, EgaChunk chunk) throws IOException;
+
+    void remove(CacheKey cacheKey);
+}
@@ -18,10 +18,45 @@
 package uk.ac.ebi.ega.egafuse.service;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 import uk.ac.ebi.ega.egafuse.exception.ClientProtocolException;
 import uk.ac.ebi.ega.egafuse.model.CacheKey;
 
 public interface IFileChunkDownloadService {
-    byte[] downloadChunk(CacheKey cacheKey) throws IOException, ClientProtocolException;
+    /**
+     * Downloads adjacent chunks of one file with a single range request, filling
+     * the chunks in order as the response arrives.
+     */
+    void downloadChunks(List<CacheKey> cacheKeys, List<EgaChunk> chunks) throws IOException, ClientProtocolException;
+
+    /**
+     * As {@link #downloadChunks(List, List)}, once the request is made a way to
+     * cancel it is handed to {@code onRequest}. A cancelled download fails with a
+     * {@link CancellationException}.
+     */
+    default void downloadChunks(List<CacheKey> cacheKeys, List<EgaChunk> chunks, Consumer<Runnable> onRequest)
+            throws IOException, ClientProtocolException {
+        downloadChunks(cacheKeys, chunks);
+    }
+
+    /**
+     * Non-blocking variant of {@link #downloadChunks(List, List, Consumer)},
+     * the future fails with the same exceptions. Implementations without a
+     * non-blocking client run the download on the calling thread.
+     */
+    default CompletableFuture<Void> downloadChunksAsync(List<CacheKey> cacheKeys, List<EgaChunk> chunks,
+            Consumer<Runnable> onRequest) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            downloadChunks(cacheKeys, chunks, onRequest);
+            future.complete(null);
+        } catch (IOException | ClientProtocolException | RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
 }
\ No newline at end of file
@@ -18,8 +18,16 @@
 package uk.ac.ebi.ega.egafuse.service;
 
 import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.api.client.auth.oauth2.PasswordTokenRequest;
+import com.google.api.client.auth.oauth2.RefreshTokenRequest;
 import com.google.api.client.auth.oauth2.TokenResponse;
 import com.google.api.client.http.BasicAuthentication;
 import com.google.api.client.http.GenericUrl;
@@ -27,6 +35,9 @@ import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
 
 public class Token {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Token.class);
+    // used when the AAI does not send expires_in with the access token
+    private static final long DEFAULT_EXPIRES_IN_SECONDS = 300;
     private HttpTransport httpTransport;
     private JsonFactory jsonFactory;
     private String username;
@@ -35,10 +46,17 @@ public class Token {
     private String egaUserSecret;
     private String egaUserGrant;
     private String aaiUrl;
+    private long refreshBeforeExpirySeconds;
+    private ScheduledExecutorService refreshScheduler;
+    private ScheduledFuture<?> scheduledRefresh;
+    private String refreshToken;
+    private volatile String accessToken;
+    private volatile long refreshAtMillis;
+    private long expiresAtMillis;
 
-    
     public Token(HttpTransport httpTransport, JsonFactory jsonFactory, String username, String password,
-            String egaUserId, String egaUserSecret, String egaUserGrant, String aaiUrl) {
+            String egaUserId, String egaUserSecret, String egaUserGrant, String aaiUrl,
+            long refreshBeforeExpirySeconds) {
         this.httpTransport = httpTransport;
         this.jsonFactory = jsonFactory;
         this.username = username;
@@ -47,14 +65,88 @@ public class Token {
         this.egaUserSecret = egaUserSecret;
         this.egaUserGrant = egaUserGrant;
         this.aaiUrl = aaiUrl;
+        this.refreshBeforeExpirySeconds = refreshBeforeExpirySeconds;
+        this.refreshScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "token-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     public String getBearerToken() throws IOException {
-        TokenResponse response = new PasswordTokenRequest(httpTransport, jsonFactory,
-                new GenericUrl(aaiUrl.concat("/token")), username, password).setGrantType(egaUserGrant)
-                        .setClientAuthentication(new BasicAuthentication(egaUserId, egaUserSecret)).execute();
+        String currentToken = accessToken;
+        if (currentToken != null && System.currentTimeMillis() < refreshAtMillis) {
+            return currentToken;
+        }
+        return refreshIfDue();
+    }
+
+    // Only one caller talks to the AAI at a time, the others pick up the token it obtained.
+    private synchronized String refreshIfDue() throws IOException {
+        if (accessToken != null && System.currentTimeMillis() < refreshAtMillis) {
+            return accessToken;
+        }
+        try {
+            return refresh();
+        } catch (IOException e) {
+            if (accessToken != null && System.currentTimeMillis() < expiresAtMillis) {
+                LOGGER.warn("Token refresh failed, using current token until it expires - {}", e.getMessage());
+                return accessToken;
+            }
+            throw e;
+        }
+    }
+
+    private synchronized String refresh() throws IOException {
+        TokenResponse response = requestToken();
+        long expiresInSeconds = response.getExpiresInSeconds() != null ? response.getExpiresInSeconds()
+                : DEFAULT_EXPIRES_IN_SECONDS;
+        long refreshInSeconds = Math.max(expiresInSeconds - refreshBeforeExpirySeconds, expiresInSeconds / 2);
 
-        return response.getAccessToken();
+        if (response.getRefreshToken() != null) {
+            refreshToken = response.getRefreshToken();
+        }
+        accessToken = response.getAccessToken();
+        expiresAtMillis = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(expiresInSeconds);
+        refreshAtMillis = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(refreshInSeconds);
+        scheduleRefresh(refreshInSeconds);
+        return accessToken;
     }
 
+    private TokenResponse requestToken() throws IOException {
+        GenericUrl tokenUrl = new GenericUrl(aaiUrl.concat("/token"));
+        BasicAuthentication clientAuthentication = new BasicAuthentication(egaUserId, egaUserSecret);
+
+        if (refreshToken != null) {
+            try {
+                return new RefreshTokenRequest(httpTransport, jsonFactory, tokenUrl, refreshToken)
+                        .setClientAuthentication(clientAuthentication).execute();
+            } catch (IOException e) {
+                LOGGER.warn("Refresh token grant failed, falling back to password grant - {}", e.getMessage());
+                refreshToken = null;
+            }
+        }
+
+        return new PasswordTokenRequest(httpTransport, jsonFactory, tokenUrl, username, password)
+                .setGrantType(egaUserGrant).setClientAuthentication(clientAuthentication).execute();
+    }
+
+    private void scheduleRefresh(long refreshInSeconds) {
+        if (scheduledRefresh != null) {
+            scheduledRefresh.cancel(false);
+            scheduledRefresh = null;
+        }
+        if (refreshInSeconds <= 0) {
+            // a token that is due at once is refreshed by the next caller, rescheduling would loop
+            return;
+        }
+        scheduledRefresh = refreshScheduler.schedule(() -> {
+            try {
+                refresh();
+            } catch (IOException e) {
+                // the next getBearerToken() call retries synchronously once the token is due
+                LOGGER.error("Background token refresh failed - {}", e.getMessage(), e);
+            }
+        }, refreshInSeconds, TimeUnit.SECONDS);
+    }
 }
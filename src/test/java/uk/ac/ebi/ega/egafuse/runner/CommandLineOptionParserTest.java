@@ -113,6 +113,69 @@ public class CommandLineOptionParserTest {
         assertTrue(cliConfigurationValues.isTreeStructureEnable());
     }
     
+    @Test
+    public void parser_WhenGivenNoOffHeapOption_ThenReturnsFalse() throws IOException{        
+        final File mountFolder = temporaryFolder.newFolder("tmp", "mount");
+        String[] args = { "-m", mountFolder.toPath().toAbsolutePath().toString(), "-cf", createCredentialFile()};
+        OptionSet set = CommandLineOptionParser.buildParser().parse(args) ;        
+        CliConfigurationValues cliConfigurationValues = CommandLineOptionParser.parser(set);
+        assertFalse(cliConfigurationValues.isOffHeapCacheEnable());
+    }
+    
+    @Test
+    public void parser_WhenGivenOffHeapOptionEnable_ThenReturnsTrue() throws IOException{        
+        final File mountFolder = temporaryFolder.newFolder("tmp", "mount");
+        String[] args = { "-m", mountFolder.toPath().toAbsolutePath().toString(), "-cf", createCredentialFile(), "-offheap", ENABLE};
+        OptionSet set = CommandLineOptionParser.buildParser().parse(args) ;        
+        CliConfigurationValues cliConfigurationValues = CommandLineOptionParser.parser(set);
+        assertTrue(cliConfigurationValues.isOffHeapCacheEnable());
+    }
+    
+    @Test
+    public void parser_WhenGivenAutotuneOptionEnable_ThenReturnsTrue() throws IOException{
+        final File mountFolder = temporaryFolder.newFolder("tmp", "mount");
+        String[] args = { "-m", mountFolder.toPath().toAbsolutePath().toString(), "-cf", createCredentialFile(), "-autotune", ENABLE};
+        OptionSet set = CommandLineOptionParser.buildParser().parse(args) ;
+        CliConfigurationValues cliConfigurationValues = CommandLineOptionParser.parser(set);
+        assertTrue(cliConfigurationValues.isAutotuneEnable());
+        assertEquals(1, cliConfigurationValues.getMinConnection());
+    }
+
+    @Test
+    public void parser_WhenGivenHttp2OptionEnable_ThenReturnsTrue() throws IOException{
+        final File mountFolder = temporaryFolder.newFolder("tmp", "mount");
+        String[] args = { "-m", mountFolder.toPath().toAbsolutePath().toString(), "-cf", createCredentialFile(), "-http2", ENABLE};
+        OptionSet set = CommandLineOptionParser.buildParser().parse(args) ;
+        CliConfigurationValues cliConfigurationValues = CommandLineOptionParser.parser(set);
+        assertTrue(cliConfigurationValues.isHttp2Enable());
+    }
+
+    @Test
+    public void parser_WhenGivenAsyncOptionEnable_ThenReturnsTrue() throws IOException{
+        final File mountFolder = temporaryFolder.newFolder("tmp", "mount");
+        String[] args = { "-m", mountFolder.toPath().toAbsolutePath().toString(), "-cf", createCredentialFile(), "-async", ENABLE};
+        OptionSet set = CommandLineOptionParser.buildParser().parse(args) ;
+        CliConfigurationValues cliConfigurationValues = CommandLineOptionParser.parser(set);
+        assertTrue(cliConfigurationValues.isAsyncDownloadEnable());
+    }
+
+    @Test
+    public void parser_WhenGivenMountOptions_ThenReturnsMountOptions() throws IOException{
+        final File mountFolder = temporaryFolder.newFolder("tmp", "mount");
+        String[] args = { "-m", mountFolder.toPath().toAbsolutePath().toString(), "-cf", createCredentialFile(), "-o", "attr_timeout=60"};
+        OptionSet set = CommandLineOptionParser.buildParser().parse(args) ;
+        CliConfigurationValues cliConfigurationValues = CommandLineOptionParser.parser(set);
+        assertEquals("attr_timeout=60", cliConfigurationValues.getMountOptions());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parser_WhenGivencminGreaterThanc_ThenThrowsException() throws IOException{
+        final File mountFolder = temporaryFolder.newFolder("tmp", "mount");
+        String[] args = { "-m", mountFolder.toPath().toAbsolutePath().toString(), "-cf", createCredentialFile(), "-c", "2", "-cmin", "3"};
+        OptionSet set = CommandLineOptionParser.buildParser().parse(args) ;
+        CommandLineOptionParser.parser(set);
+    }
+
     @Test
     public void parser_WhenGivenNocAndNocpf_ThenNoException() throws IOException{        
         final File mountFolder = temporaryFolder.newFolder("tmp", "mount");
@@ -0,0 +1,172 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.ebi.ega.egafuse.model.CacheKey;
+import uk.ac.ebi.ega.egafuse.model.File;
+import uk.ac.ebi.ega.egafuse.service.EgaChecksumVerifier.Status;
+
+public class EgaChecksumVerifierTest {
+    private static final byte[] DATA = "hello world!!".getBytes();
+    private EgaChecksumVerifier checksumVerifier;
+    private ConcurrentMap<CacheKey, CompletableFuture<EgaChunk>> cacheEntries;
+
+    @Before
+    public void before() {
+        checksumVerifier = new EgaChecksumVerifier(true, 5, Runnable::run);
+        cacheEntries = new ConcurrentHashMap<>();
+        checksumVerifier.setCacheEntries(cacheEntries);
+    }
+
+    @Test
+    public void onChunkLoaded_WhenAllChunksAreCached_ThenVerifiesFile() {
+        checksumVerifier.register(file("570599d420acc25723b337b0db95c7c7", "MD5"));
+        givenCachedChunk(0);
+        givenCachedChunk(5);
+        givenCachedChunk(10);
+
+        checksumVerifier.onChunkLoaded(new CacheKey(10, 3, "fileId"));
+
+        assertEquals(Status.VERIFIED, checksumVerifier.getStatus("fileId"));
+    }
+
+    @Test
+    public void onChunkLoaded_WhenChunksArriveOutOfOrder_ThenWaitsForEarlierChunks() {
+        checksumVerifier.register(file("8380c4c6720e0d5ce4789bf72df03a6e1b3ed80891f3adbe8833c760399b8e91", "SHA256"));
+        givenCachedChunk(5);
+        givenCachedChunk(10);
+        checksumVerifier.onChunkLoaded(new CacheKey(5, 5, "fileId"));
+        checksumVerifier.onChunkLoaded(new CacheKey(10, 3, "fileId"));
+        assertEquals(Status.PENDING, checksumVerifier.getStatus("fileId"));
+
+        givenCachedChunk(0);
+        checksumVerifier.onChunkLoaded(new CacheKey(0, 5, "fileId"));
+
+        assertEquals(Status.VERIFIED, checksumVerifier.getStatus("fileId"));
+    }
+
+    @Test
+    public void onChunkLoaded_WhenChecksumDiffers_ThenFailsFile() {
+        checksumVerifier.register(file("00000000000000000000000000000000", "MD5"));
+        givenCachedChunk(0);
+        givenCachedChunk(5);
+        givenCachedChunk(10);
+
+        checksumVerifier.onChunkLoaded(new CacheKey(0, 5, "fileId"));
+
+        assertTrue(checksumVerifier.isFailed("fileId"));
+    }
+
+    @Test
+    public void onChunkLoaded_WhenChecksumDiffers_ThenDropsChunksOfFile() {
+        IEgaDiskChunkCache diskChunkCache = mock(IEgaDiskChunkCache.class);
+        checksumVerifier.setDiskChunkCache(diskChunkCache);
+        checksumVerifier.register(file("00000000000000000000000000000000", "MD5"));
+        givenCachedChunk(0);
+        givenCachedChunk(5);
+        givenCachedChunk(10);
+
+        checksumVerifier.onChunkLoaded(new CacheKey(0, 5, "fileId"));
+
+        assertTrue(cacheEntries.isEmpty());
+        verify(diskChunkCache).remove(new CacheKey(0, 5, "fileId"));
+        verify(diskChunkCache).remove(new CacheKey(5, 5, "fileId"));
+        verify(diskChunkCache).remove(new CacheKey(10, 3, "fileId"));
+    }
+
+    @Test
+    public void restart_WhenFileFailed_ThenVerifiesFileAfresh() {
+        checksumVerifier.register(file("570599d420acc25723b337b0db95c7c7", "MD5"));
+        cacheEntries.put(new CacheKey(0, 5, "fileId"),
+                CompletableFuture.completedFuture(new HeapEgaChunk("jello".getBytes())));
+        givenCachedChunk(5);
+        givenCachedChunk(10);
+        checksumVerifier.onChunkLoaded(new CacheKey(0, 5, "fileId"));
+        assertTrue(checksumVerifier.isFailed("fileId"));
+
+        checksumVerifier.restart("fileId");
+        givenCachedChunk(0);
+        givenCachedChunk(5);
+        givenCachedChunk(10);
+        checksumVerifier.onChunkLoaded(new CacheKey(0, 5, "fileId"));
+
+        assertEquals(Status.VERIFIED, checksumVerifier.getStatus("fileId"));
+    }
+
+    @Test
+    public void awaitVerdict_WhenLastChunkIsCached_ThenReturnsVerdictOfFile() throws Exception {
+        checksumVerifier = new EgaChecksumVerifier(true, 5);
+        checksumVerifier.setCacheEntries(cacheEntries);
+        checksumVerifier.register(file("00000000000000000000000000000000", "MD5"));
+        givenCachedChunk(0);
+        givenCachedChunk(5);
+        givenCachedChunk(10);
+
+        assertEquals(Status.FAILED, checksumVerifier.awaitVerdict("fileId"));
+    }
+
+    @Test
+    public void awaitVerdict_WhenEarlierChunkIsMissing_ThenReturnsPending() throws Exception {
+        checksumVerifier = new EgaChecksumVerifier(true, 5);
+        checksumVerifier.setCacheEntries(cacheEntries);
+        checksumVerifier.register(file("570599d420acc25723b337b0db95c7c7", "MD5"));
+        givenCachedChunk(5);
+        givenCachedChunk(10);
+
+        assertEquals(Status.PENDING, checksumVerifier.awaitVerdict("fileId"));
+        assertFalse(checksumVerifier.isFailed("fileId"));
+    }
+
+    @Test
+    public void register_WhenDisabled_ThenFileIsNotVerified() {
+        checksumVerifier = new EgaChecksumVerifier(false, 5, Runnable::run);
+
+        checksumVerifier.register(file("570599d420acc25723b337b0db95c7c7", "MD5"));
+
+        assertEquals(Status.UNKNOWN, checksumVerifier.getStatus("fileId"));
+    }
+
+    private File file(String checksum, String checksumType) {
+        File file = new File();
+        file.setFileId("fileId");
+        file.setFileSize(DATA.length);
+        file.setUnencryptedChecksum(checksum);
+        file.setUnencryptedChecksumType(checksumType);
+        return file;
+    }
+
+    private void givenCachedChunk(int start) {
+        int length = Math.min(5, DATA.length - start);
+        cacheEntries.put(new CacheKey(start, length, "fileId"),
+                CompletableFuture.completedFuture(new HeapEgaChunk(Arrays.copyOfRange(DATA, start, start + length))));
+    }
+}
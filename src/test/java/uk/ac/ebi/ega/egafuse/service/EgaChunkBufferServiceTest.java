@@ -19,15 +19,25 @@ package uk.ac.ebi.ega.egafuse.service;
 
 import static org.junit.Assert.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.function.BiFunction;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.test.context.ContextConfiguration;
@@ -38,8 +48,10 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
 
 import jnr.ffi.Pointer;
+import ru.serce.jnrfuse.ErrorCodes;
 import uk.ac.ebi.ega.egafuse.config.EgaFuseApplicationConfig;
 import uk.ac.ebi.ega.egafuse.model.CacheKey;
+import uk.ac.ebi.ega.egafuse.service.EgaChecksumVerifier.Status;
 
 @TestPropertySource("classpath:application-test.properties")
 @ContextConfiguration(classes = EgaFuseApplicationConfig.class)
@@ -50,50 +62,176 @@ public class EgaChunkBufferServiceTest {
     @Value("${api.chunksize}")
     private long CHUNK_SIZE;
 
-    @Value("${connectionPerFile}")
-    private int PREFETCH;
+    @Value("${readahead}")
+    private int READAHEAD;
     
     @Value("${tree}")
     private boolean isTreeStructureEnable;
 
     @Mock
-    private AsyncLoadingCache<CacheKey, byte[]> cache;
+    private AsyncLoadingCache<CacheKey, EgaChunk> cache;
+
+    @Mock
+    private EgaChunkLoader chunkLoader;
+
+    @Mock
+    private EgaDownloadScheduler downloadScheduler;
 
     @Mock
     private Pointer pointer;
 
     @Before
     public void before() {
-        bufferService = new EgaChunkBufferService(CHUNK_SIZE, PREFETCH, cache);
+        bufferService = new EgaChunkBufferService(CHUNK_SIZE, READAHEAD, cache, chunkLoader, downloadScheduler);
     }
 
     @Test
     public void fillBuffer_WhenGivenFile_ThenReturnsChunkSize() throws JsonProcessingException, InterruptedException, ExecutionException {
-        CompletableFuture<byte[]> future = mock(CompletableFuture.class);
-        when(cache.get(any())).thenReturn(future);
-        when(future.get()).thenReturn(new byte[] {});
+        givenCachedChunks(new HeapEgaChunk(new byte[100]));
         long bytesToRead = 10l;
-        int chunksize = bufferService.fillBuffer(pointer, "fileId", 100l, bytesToRead, 0l);
+        int chunksize = bufferService.fillBuffer(pointer, bufferService.open(), "fileId", 100l, bytesToRead, 0l);
         assertEquals(bytesToRead, chunksize);
     }
 
     @Test
     public void fillBuffer_WhenGivenNoFile_ThenReturnsNegativeChunkSize()
             throws JsonProcessingException, InterruptedException, ExecutionException {
-        CompletableFuture<byte[]> future = mock(CompletableFuture.class);
-        when(cache.get(any())).thenReturn(future);
-        when(future.get()).thenReturn(null);
-        int chunksize = bufferService.fillBuffer(pointer, "fileId", 100l, 10l, 0l);
+        givenCachedChunks(null);
+        int chunksize = bufferService.fillBuffer(pointer, bufferService.open(), "fileId", 100l, 10l, 0l);
         assertEquals(-1, chunksize);
     }
 
     @Test
     public void fillBuffer_WhenGivenExcpetion_ThenReturnsNegativeChunkSize()
             throws JsonProcessingException, InterruptedException, ExecutionException {
-        CompletableFuture<byte[]> future = mock(CompletableFuture.class);
-        when(cache.get(any())).thenReturn(future);
+        CompletableFuture<Map<CacheKey, EgaChunk>> future = mock(CompletableFuture.class);
+        when(cache.getAll(any())).thenReturn(future);
         when(future.get()).thenThrow(InterruptedException.class);
-        int chunksize = bufferService.fillBuffer(pointer, "fileId", 100l, 10l, 0l);
+        int chunksize = bufferService.fillBuffer(pointer, bufferService.open(), "fileId", 100l, 10l, 0l);
         assertEquals(-1, chunksize);
     }
+
+    @Test
+    public void fillBuffer_WhenReadCrossesChunkBoundary_ThenReadsFromBothChunks() {
+        bufferService = new EgaChunkBufferService(10l, 0, cache, chunkLoader, downloadScheduler);
+        byte[] firstChunk = new byte[10];
+        byte[] secondChunk = new byte[10];
+        Map<CacheKey, EgaChunk> chunks = new HashMap<>();
+        chunks.put(new CacheKey(0l, 10l, "fileId"), new HeapEgaChunk(firstChunk));
+        chunks.put(new CacheKey(10l, 10l, "fileId"), new HeapEgaChunk(secondChunk));
+        when(cache.getAll(Arrays.asList(new CacheKey(0l, 10l, "fileId"), new CacheKey(10l, 10l, "fileId"))))
+                .thenReturn(CompletableFuture.completedFuture(chunks));
+
+        int chunksize = bufferService.fillBuffer(pointer, bufferService.open(), "fileId", 20l, 10l, 5l);
+
+        assertEquals(10, chunksize);
+        verify(pointer).put(0l, firstChunk, 5, 5);
+        verify(pointer).put(5l, secondChunk, 0, 5);
+    }
+
+    @Test
+    public void fillBuffer_WhenReadingSequentially_ThenPrefetchesNextChunk() {
+        bufferService = new EgaChunkBufferService(10l, READAHEAD, cache, chunkLoader, downloadScheduler);
+        givenCachedChunks(new HeapEgaChunk(new byte[10]));
+
+        bufferService.fillBuffer(pointer, bufferService.open(), "fileId", 100l, 10l, 0l);
+
+        verify(cache).getAll(Collections.singletonList(new CacheKey(0l, 10l, "fileId")));
+        verify(cache).getAll(eq(Collections.singletonList(new CacheKey(10l, 10l, "fileId"))), any(BiFunction.class));
+    }
+
+    @Test
+    public void fillBuffer_WhenSeekingAway_ThenCancelsPrefetchesOfHandle() {
+        bufferService = new EgaChunkBufferService(10l, READAHEAD, cache, chunkLoader, downloadScheduler);
+        givenCachedChunks(new HeapEgaChunk(new byte[10]));
+        long handle = bufferService.open();
+
+        bufferService.fillBuffer(pointer, handle, "fileId", 100l, 10l, 0l);
+        bufferService.fillBuffer(pointer, handle, "fileId", 100l, 10l, 70l);
+
+        verify(downloadScheduler).cancel(handle);
+    }
+
+    @Test
+    public void fillBuffer_WhenSeekingIntoReadahead_ThenKeepsPrefetchOfChunkBeingRead() {
+        bufferService = new EgaChunkBufferService(10l, READAHEAD, cache, chunkLoader, downloadScheduler);
+        givenCachedChunks(new HeapEgaChunk(new byte[10]));
+        long handle = bufferService.open();
+
+        bufferService.fillBuffer(pointer, handle, "fileId", 100l, 10l, 0l);
+        bufferService.fillBuffer(pointer, handle, "fileId", 100l, 10l, 20l);
+
+        InOrder inOrder = inOrder(downloadScheduler);
+        inOrder.verify(downloadScheduler).promote(new CacheKey(20l, 10l, "fileId"));
+        inOrder.verify(downloadScheduler).cancel(handle);
+    }
+
+    @Test
+    public void fillBuffer_WhenReadCompletesFileThatFailedVerification_ThenReturnsIoError() throws Exception {
+        EgaChecksumVerifier checksumVerifier = mock(EgaChecksumVerifier.class);
+        when(checksumVerifier.awaitVerdict("fileId")).thenReturn(Status.FAILED);
+        bufferService = new EgaChunkBufferService(10l, 0, cache, chunkLoader, downloadScheduler, checksumVerifier);
+        givenCachedChunks(new HeapEgaChunk(new byte[10]));
+
+        int chunksize = bufferService.fillBuffer(pointer, bufferService.open(), "fileId", 100l, 10l, 90l);
+
+        assertEquals(-ErrorCodes.EIO(), chunksize);
+    }
+
+    @Test
+    public void fillBuffer_WhenFileFailedVerification_ThenFailsEveryLaterRead() {
+        EgaChecksumVerifier checksumVerifier = mock(EgaChecksumVerifier.class);
+        when(checksumVerifier.isFailed("fileId")).thenReturn(true);
+        bufferService = new EgaChunkBufferService(10l, 0, cache, chunkLoader, downloadScheduler, checksumVerifier);
+        givenCachedChunks(new HeapEgaChunk(new byte[10]));
+
+        int chunksize = bufferService.fillBuffer(pointer, bufferService.open(), "fileId", 100l, 10l, 50l);
+
+        assertEquals(-ErrorCodes.EIO(), chunksize);
+        verify(checksumVerifier, never()).restart(any());
+    }
+
+    @Test
+    public void fillBuffer_WhenFileThatFailedVerificationIsReadFromStart_ThenVerifiesItAfresh() {
+        EgaChecksumVerifier checksumVerifier = mock(EgaChecksumVerifier.class);
+        when(checksumVerifier.isFailed("fileId")).thenReturn(true);
+        bufferService = new EgaChunkBufferService(10l, 0, cache, chunkLoader, downloadScheduler, checksumVerifier);
+        givenCachedChunks(new HeapEgaChunk(new byte[10]));
+
+        int chunksize = bufferService.fillBuffer(pointer, bufferService.open(), "fileId", 100l, 10l, 0l);
+
+        assertEquals(10, chunksize);
+        verify(checksumVerifier).restart("fileId");
+    }
+
+    @Test
+    public void fillBuffer_WhenReadDoesNotCompleteFile_ThenDoesNotWaitForVerdict() throws Exception {
+        EgaChecksumVerifier checksumVerifier = mock(EgaChecksumVerifier.class);
+        bufferService = new EgaChunkBufferService(10l, 0, cache, chunkLoader, downloadScheduler, checksumVerifier);
+        givenCachedChunks(new HeapEgaChunk(new byte[10]));
+
+        int chunksize = bufferService.fillBuffer(pointer, bufferService.open(), "fileId", 100l, 10l, 0l);
+
+        assertEquals(10, chunksize);
+        verify(checksumVerifier, never()).awaitVerdict(any());
+    }
+
+    @Test
+    public void release_WhenGivenHandle_ThenCancelsPrefetchesOfHandle() {
+        long handle = bufferService.open();
+
+        bufferService.release(handle);
+
+        verify(downloadScheduler).cancel(handle);
+    }
+
+    private void givenCachedChunks(EgaChunk chunk) {
+        when(cache.getAll(any())).thenAnswer(invocation -> {
+            Map<CacheKey, EgaChunk> chunks = new HashMap<>();
+            for (CacheKey cacheKey : invocation.<Iterable<CacheKey>>getArgument(0)) {
+                chunks.put(cacheKey, chunk);
+            }
+            return CompletableFuture.completedFuture(chunks);
+        });
+    }
 }
@@ -0,0 +1,269 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+
+import uk.ac.ebi.ega.egafuse.model.CacheKey;
+import uk.ac.ebi.ega.egafuse.service.EgaDownloadScheduler.DownloadTask;
+import uk.ac.ebi.ega.egafuse.service.EgaDownloadScheduler.Priority;
+
+public class EgaChunkLoaderTest {
+
+    @Test
+    public void load_WhenDownloadFailsOnce_ThenReturnsChunkOfRetry() throws Exception {
+        AtomicInteger downloads = new AtomicInteger();
+        EgaChunkLoader chunkLoader = new EgaChunkLoader((cacheKeys, chunks) -> {
+            if (downloads.incrementAndGet() == 1) {
+                throw new IOException("Connection reset");
+            }
+            fill(chunks);
+        }, new EgaDownloadScheduler(1, 10, 10), new EgaChunkPool(10, 0, false), new EgaRetryPolicy(2, 0, 0, 10, 0),
+                new EgaChecksumVerifier(false, 10));
+
+        EgaChunk chunk = chunkLoader.load(new CacheKey(0, 10, "EGAF00001"));
+
+        assertEquals(10, chunk.getAvailable());
+        assertEquals(2, downloads.get());
+    }
+
+    @Test
+    public void asyncLoadAll_WhenRetryCompletesRun_ThenReportsEachChunkOnce() throws Exception {
+        AtomicInteger downloads = new AtomicInteger();
+        List<CacheKey> loadedKeys = Collections.synchronizedList(new ArrayList<>());
+        EgaChecksumVerifier checksumVerifier = new EgaChecksumVerifier(false, 10) {
+            @Override
+            public void onChunkLoaded(CacheKey cacheKey) {
+                loadedKeys.add(cacheKey);
+            }
+        };
+        EgaChunkLoader chunkLoader = new EgaChunkLoader((cacheKeys, chunks) -> {
+            if (downloads.incrementAndGet() == 1) {
+                fill(chunks.subList(0, 1));
+                throw new IOException("Connection reset");
+            }
+            fill(chunks.subList(1, 2));
+        }, new EgaDownloadScheduler(1, 10, 10), new EgaChunkPool(10, 0, false), new EgaRetryPolicy(2, 0, 0, 10, 0),
+                checksumVerifier);
+        CacheKey first = new CacheKey(0, 10, "EGAF00001");
+        CacheKey second = new CacheKey(10, 10, "EGAF00001");
+
+        EgaChunk chunk = chunkLoader.asyncLoadAll(Arrays.asList(first, second), Runnable::run).get().get(second);
+        chunk.awaitAvailable(10);
+        while (loadedKeys.size() < 2) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+
+        assertEquals(Arrays.asList(first, second), loadedKeys);
+    }
+
+    @Test
+    public void asyncLoadAll_WhenQueuedPrefetchCancelledWhileReaderWaits_ThenStillDownloadsChunk() throws Exception {
+        EgaDownloadScheduler downloadScheduler = new EgaDownloadScheduler(1, 10, 10);
+        EgaChunkLoader chunkLoader = new EgaChunkLoader((cacheKeys, chunks) -> fill(chunks), downloadScheduler,
+                new EgaChunkPool(10, 0, false), new EgaRetryPolicy(1, 0, 0, 0, 0), new EgaChecksumVerifier(false, 10));
+        CountDownLatch blocker = new CountDownLatch(1);
+        downloadScheduler.submit(new DownloadTask(2, Priority.DEMAND,
+                Collections.singletonList(new CacheKey(0, 10, "EGAF00002")), () -> {
+                    try {
+                        blocker.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }, () -> {
+                }));
+        CacheKey cacheKey = new CacheKey(10, 10, "EGAF00001");
+        EgaChunk chunk = chunkLoader.asyncLoadAll(Collections.singletonList(cacheKey), Runnable::run, 1,
+                Priority.PREFETCH).get().get(cacheKey);
+        CompletableFuture<Void> reader = CompletableFuture.runAsync(() -> {
+            try {
+                chunk.awaitAvailable(10);
+            } catch (IOException | InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        while (!chunk.hasWaiters()) {
+            Thread.sleep(1);
+        }
+
+        downloadScheduler.cancel(1);
+        blocker.countDown();
+
+        reader.get(5, TimeUnit.SECONDS);
+        assertEquals(10, chunk.getAvailable());
+    }
+
+    @Test(expected = IOException.class)
+    public void asyncLoadAll_WhenRunningPrefetchCancelled_ThenCancelsRequest() throws Exception {
+        EgaDownloadScheduler downloadScheduler = new EgaDownloadScheduler(1, 10, 10);
+        CountDownLatch started = new CountDownLatch(1);
+        CancellableDownload downloadService = new CancellableDownload(started);
+        EgaChunkLoader chunkLoader = new EgaChunkLoader(downloadService, downloadScheduler,
+                new EgaChunkPool(10, 0, false), new EgaRetryPolicy(1, 0, 0, 0, 0), new EgaChecksumVerifier(false, 10));
+        ConcurrentMap<CacheKey, CompletableFuture<EgaChunk>> cacheEntries = new ConcurrentHashMap<>();
+        chunkLoader.setCacheEntries(cacheEntries);
+        CacheKey cacheKey = new CacheKey(0, 10, "EGAF00001");
+        CompletableFuture<EgaChunk> entry = chunkLoader.asyncLoadAll(Collections.singletonList(cacheKey),
+                Runnable::run, 1, Priority.PREFETCH).thenApply(chunks -> chunks.get(cacheKey));
+        cacheEntries.put(cacheKey, entry);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        downloadScheduler.cancel(1);
+        while (cacheEntries.containsKey(cacheKey)) {
+            Thread.sleep(1);
+        }
+
+        entry.get().awaitAvailable(10);
+    }
+
+    @Test
+    public void asyncLoadAll_WhenRunningPrefetchCancelledWhileReaderWaits_ThenKeepsRequest() throws Exception {
+        EgaDownloadScheduler downloadScheduler = new EgaDownloadScheduler(1, 10, 10);
+        CountDownLatch started = new CountDownLatch(1);
+        CancellableDownload downloadService = new CancellableDownload(started);
+        EgaChunkLoader chunkLoader = new EgaChunkLoader(downloadService, downloadScheduler,
+                new EgaChunkPool(10, 0, false), new EgaRetryPolicy(1, 0, 0, 0, 0), new EgaChecksumVerifier(false, 10));
+        CacheKey cacheKey = new CacheKey(0, 10, "EGAF00001");
+        EgaChunk chunk = chunkLoader.asyncLoadAll(Collections.singletonList(cacheKey), Runnable::run, 1,
+                Priority.PREFETCH).get().get(cacheKey);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Void> reader = CompletableFuture.runAsync(() -> {
+            try {
+                chunk.awaitAvailable(10);
+            } catch (IOException | InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        while (!chunk.hasWaiters()) {
+            Thread.sleep(1);
+        }
+
+        downloadScheduler.cancel(1);
+        downloadService.finish.countDown();
+
+        reader.get(5, TimeUnit.SECONDS);
+        assertEquals(10, chunk.getAvailable());
+    }
+
+    @Test
+    public void asyncLoadAll_WhenDiskCacheFails_ThenReturnsAllocatedChunksToPool() throws Exception {
+        CacheKey first = new CacheKey(0, 10, "EGAF00001");
+        CacheKey second = new CacheKey(10, 10, "EGAF00001");
+        IEgaDiskChunkCache diskChunkCache = new IEgaDiskChunkCache() {
+            @Override
+            public EgaChunk get(CacheKey cacheKey) throws IOException {
+                if (cacheKey.equals(second)) {
+                    throw new IOException("Input/output error");
+                }
+                return null;
+            }
+
+            @Override
+            public void put(CacheKey cacheKey, EgaChunk chunk) {
+            }
+
+            @Override
+            public void remove(CacheKey cacheKey) {
+            }
+        };
+        EgaChunkPool chunkPool = new EgaChunkPool(10, 2, false);
+        EgaChunkLoader chunkLoader = new EgaChunkLoader((cacheKeys, chunks) -> fill(chunks), diskChunkCache,
+                new EgaDownloadScheduler(1, 10, 10), chunkPool, new EgaRetryPolicy(1, 0, 0, 0, 0),
+                new EgaChecksumVerifier(false, 10));
+
+        CompletableFuture<?> future = chunkLoader.asyncLoadAll(Arrays.asList(first, second), Runnable::run);
+
+        assertTrue(future.isCompletedExceptionally());
+        assertEquals(1, chunkPool.getPooledBuffers());
+    }
+
+    @Test
+    public void toAdjacentRuns_WhenKeysHaveGaps_ThenSplitsIntoRunsPerFile() {
+        CacheKey first = new CacheKey(0, 10, "EGAF00001");
+        CacheKey second = new CacheKey(10, 10, "EGAF00001");
+        CacheKey afterGap = new CacheKey(30, 10, "EGAF00001");
+        CacheKey otherFile = new CacheKey(40, 10, "EGAF00002");
+
+        List<List<CacheKey>> runs = EgaChunkLoader.toAdjacentRuns(Arrays.asList(afterGap, otherFile, second, first));
+
+        assertEquals(Arrays.asList(Arrays.asList(first, second), Arrays.asList(afterGap), Arrays.asList(otherFile)),
+                runs);
+    }
+
+    /**
+     * Blocks in the download until it is cancelled, or fills the chunks once
+     * told to finish.
+     */
+    private static class CancellableDownload implements IFileChunkDownloadService {
+        private final CountDownLatch started;
+        private final CountDownLatch finish = new CountDownLatch(1);
+
+        CancellableDownload(CountDownLatch started) {
+            this.started = started;
+        }
+
+        @Override
+        public void downloadChunks(List<CacheKey> cacheKeys, List<EgaChunk> chunks) throws IOException {
+            fill(chunks);
+        }
+
+        @Override
+        public void downloadChunks(List<CacheKey> cacheKeys, List<EgaChunk> chunks, Consumer<Runnable> onRequest)
+                throws IOException {
+            CountDownLatch cancelled = new CountDownLatch(1);
+            onRequest.accept(cancelled::countDown);
+            started.countDown();
+            while (cancelled.getCount() > 0) {
+                try {
+                    if (finish.await(1, TimeUnit.MILLISECONDS)) {
+                        fill(chunks);
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            throw new CancellationException("Download cancelled");
+        }
+    }
+
+    private static void fill(List<EgaChunk> chunks) throws IOException {
+        for (EgaChunk chunk : chunks) {
+            chunk.fill(new ByteArrayInputStream(new byte[chunk.getLength()]));
+        }
+    }
+}
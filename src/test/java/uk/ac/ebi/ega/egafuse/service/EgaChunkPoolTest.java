@@ -0,0 +1,76 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class EgaChunkPoolTest {
+    private static final int BUFFER_SIZE = 16;
+
+    @Test
+    public void release_WhenLastReferenceIsReleased_ThenBufferGoesBackToPool() {
+        EgaChunkPool pool = new EgaChunkPool(BUFFER_SIZE, 2, false);
+        EgaChunk chunk = pool.allocate(BUFFER_SIZE);
+
+        chunk.release();
+
+        assertEquals(1, pool.getPooledBuffers());
+        assertFalse(chunk.retain());
+        pool.allocate(BUFFER_SIZE);
+        assertEquals(0, pool.getPooledBuffers());
+    }
+
+    @Test
+    public void release_WhenChunkIsStillRetained_ThenKeepsBuffer() {
+        EgaChunkPool pool = new EgaChunkPool(BUFFER_SIZE, 2, true);
+        EgaChunk chunk = pool.allocate(BUFFER_SIZE);
+        assertTrue(chunk.retain());
+
+        chunk.release();
+        assertEquals(0, pool.getPooledBuffers());
+
+        chunk.release();
+        assertEquals(1, pool.getPooledBuffers());
+    }
+
+    @Test
+    public void release_WhenPoolIsFull_ThenDropsBuffer() {
+        EgaChunkPool pool = new EgaChunkPool(BUFFER_SIZE, 1, false);
+        EgaChunk first = pool.allocate(BUFFER_SIZE);
+        EgaChunk second = pool.allocate(BUFFER_SIZE);
+
+        first.release();
+        second.release();
+
+        assertEquals(1, pool.getPooledBuffers());
+    }
+
+    @Test
+    public void release_WhenChunkIsShorterThanBuffer_ThenIsNotPooled() {
+        EgaChunkPool pool = new EgaChunkPool(BUFFER_SIZE, 2, false);
+        EgaChunk chunk = pool.allocate(BUFFER_SIZE / 2);
+
+        chunk.release();
+
+        assertEquals(0, pool.getPooledBuffers());
+    }
+}
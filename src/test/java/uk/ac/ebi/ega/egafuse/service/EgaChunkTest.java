@@ -0,0 +1,156 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class EgaChunkTest {
+
+    @Test
+    public void fill_WhenStreamIsComplete_ThenChunkIsComplete() throws IOException {
+        byte[] data = "testfiledata".getBytes();
+        EgaChunk chunk = EgaChunk.allocate(data.length, false);
+
+        chunk.fill(new ByteArrayInputStream(data));
+
+        assertTrue(chunk.isComplete());
+        assertArrayEquals(data, chunk.toByteArray());
+    }
+
+    @Test
+    public void awaitAvailable_WhenRangeHasArrived_ThenReturnsBeforeChunkIsComplete() throws Exception {
+        EgaChunk chunk = EgaChunk.allocate(100, true);
+        PipedOutputStream outputStream = new PipedOutputStream();
+        InputStream inputStream = new PipedInputStream(outputStream, 100);
+        CompletableFuture<Void> fill = CompletableFuture.runAsync(() -> {
+            try {
+                chunk.fill(inputStream);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        outputStream.write(new byte[10]);
+        outputStream.flush();
+        chunk.awaitAvailable(10);
+
+        assertFalse(chunk.isComplete());
+        assertTrue(chunk.getAvailable() >= 10);
+
+        outputStream.write(new byte[90]);
+        outputStream.close();
+        fill.get(5, TimeUnit.SECONDS);
+        assertEquals(100, chunk.getAvailable());
+    }
+
+    @Test
+    public void fill_WhenStartingAtPosition_ThenCompletesChunkAfterEarlierBytes() throws IOException {
+        byte[] data = "testfiledata".getBytes();
+        EgaChunk chunk = EgaChunk.allocate(data.length, false);
+        try {
+            chunk.fill(new ByteArrayInputStream(data, 0, 4));
+        } catch (EOFException e) {
+            // the first download broke off after four bytes
+        }
+        assertEquals(4, chunk.getAvailable());
+        chunk.fill(new ByteArrayInputStream(data, 4, data.length - 4), 4);
+
+        assertTrue(chunk.isComplete());
+        assertArrayEquals(data, chunk.toByteArray());
+    }
+
+    @Test
+    public void fill_WhenOtherRequestIsAhead_ThenDoesNotWritePublishedBytes() throws IOException {
+        byte[] data = "testfiledata".getBytes();
+        EgaChunk chunk = EgaChunk.allocate(data.length, false);
+        try {
+            chunk.fill(new ByteArrayInputStream(data, 0, 4));
+        } catch (EOFException e) {
+            // the hedged request got four bytes ahead before it broke off
+        }
+        byte[] behind = "XXXXfiledata".getBytes();
+
+        chunk.fill(new ByteArrayInputStream(behind));
+
+        assertTrue(chunk.isComplete());
+        assertArrayEquals(data, chunk.toByteArray());
+    }
+
+    @Test
+    public void fill_WhenGivenBufferInParts_ThenFillsUpToChunkLength() throws IOException {
+        byte[] data = "testfiledata".getBytes();
+        EgaChunk chunk = EgaChunk.allocate(8, true);
+        try {
+            chunk.fill(new ByteArrayInputStream(data, 0, 2));
+        } catch (EOFException e) {
+            // the hedged request got two bytes ahead before it broke off
+        }
+        ByteBuffer firstPart = ByteBuffer.wrap("XXst".getBytes());
+        ByteBuffer secondPart = ByteBuffer.wrap("filedata".getBytes());
+
+        assertEquals(4, chunk.fill(firstPart, 0));
+        assertEquals(8, chunk.fill(secondPart, 4));
+
+        assertTrue(chunk.isComplete());
+        assertEquals(4, secondPart.remaining());
+        assertArrayEquals("testfile".getBytes(), chunk.toByteArray());
+    }
+
+    @Test
+    public void hasWaiters_WhenReaderIsBlocked_ThenReturnsTrue() throws Exception {
+        EgaChunk chunk = EgaChunk.allocate(10, false);
+        CompletableFuture<Void> reader = CompletableFuture.runAsync(() -> {
+            try {
+                chunk.awaitAvailable(10);
+            } catch (IOException | InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        while (!chunk.hasWaiters()) {
+            Thread.sleep(10);
+        }
+
+        chunk.fill(new ByteArrayInputStream(new byte[10]));
+        reader.get(5, TimeUnit.SECONDS);
+
+        assertFalse(chunk.hasWaiters());
+    }
+
+    @Test(expected = IOException.class)
+    public void awaitAvailable_WhenDownloadFails_ThenThrowsException() throws Exception {
+        EgaChunk chunk = EgaChunk.allocate(100, false);
+        chunk.fail(new IOException("connection reset"));
+
+        chunk.awaitAvailable(1);
+    }
+}
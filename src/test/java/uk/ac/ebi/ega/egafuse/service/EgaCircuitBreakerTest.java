@@ -0,0 +1,96 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.ebi.ega.egafuse.service.EgaCircuitBreaker.State;
+
+public class EgaCircuitBreakerTest {
+    private AtomicLong clock;
+    private EgaCircuitBreaker circuitBreaker;
+
+    @Before
+    public void before() {
+        clock = new AtomicLong();
+        circuitBreaker = new EgaCircuitBreaker(3, 1000, clock::get);
+    }
+
+    @Test
+    public void onFailure_WhenThresholdReached_ThenOpensCircuit() {
+        circuitBreaker.onFailure();
+        circuitBreaker.onFailure();
+        assertTrue(circuitBreaker.allowsRequest(2));
+
+        circuitBreaker.onFailure();
+
+        assertFalse(circuitBreaker.allowsRequest(0));
+        assertEquals(1000, circuitBreaker.getOpenMillisRemaining());
+    }
+
+    @Test
+    public void onThrottled_WhenGivenRetryAfter_ThenStaysOpenThatLong() {
+        circuitBreaker.onThrottled(5000);
+
+        clock.set(4999);
+        assertFalse(circuitBreaker.allowsRequest(0));
+        clock.set(5000);
+        assertTrue(circuitBreaker.allowsRequest(0));
+    }
+
+    @Test
+    public void allowsRequest_WhenHalfOpen_ThenLetsOneRequestThrough() {
+        circuitBreaker.onThrottled(-1);
+        clock.set(1000);
+
+        assertTrue(circuitBreaker.allowsRequest(0));
+        assertFalse(circuitBreaker.allowsRequest(1));
+        assertEquals(State.HALF_OPEN, circuitBreaker.getState());
+    }
+
+    @Test
+    public void onSuccess_WhenHalfOpen_ThenClosesCircuit() {
+        circuitBreaker.onThrottled(-1);
+        clock.set(1000);
+        circuitBreaker.allowsRequest(0);
+
+        circuitBreaker.onSuccess();
+
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+        assertTrue(circuitBreaker.allowsRequest(4));
+    }
+
+    @Test
+    public void onFailure_WhenHalfOpen_ThenOpensCircuitAgain() {
+        circuitBreaker.onThrottled(-1);
+        clock.set(1000);
+        circuitBreaker.allowsRequest(0);
+
+        circuitBreaker.onFailure();
+
+        assertEquals(State.OPEN, circuitBreaker.getState());
+        assertEquals(1000, circuitBreaker.getOpenMillisRemaining());
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class EgaConcurrencyTunerTest {
+    private static final long CHUNK = 10 * 1024 * 1024;
+    private AtomicLong clock;
+
+    @Before
+    public void before() {
+        clock = new AtomicLong();
+    }
+
+    @Test
+    public void onComplete_WhenThroughputKeepsUp_ThenRaisesLimitByOne() {
+        EgaConcurrencyTuner tuner = new EgaConcurrencyTuner(1, 8, true, clock::get);
+        assertEquals(4, tuner.getLimit());
+
+        completeRound(tuner, 4, 1000);
+
+        assertEquals(5, tuner.getLimit());
+    }
+
+    @Test
+    public void onError_WhenRoundEnds_ThenHalvesLimit() {
+        EgaConcurrencyTuner tuner = new EgaConcurrencyTuner(1, 8, true, clock::get);
+
+        tuner.onError();
+        completeRound(tuner, 3, 1000);
+
+        assertEquals(2, tuner.getLimit());
+    }
+
+    @Test
+    public void onResponse_WhenLatencySpikes_ThenHalvesLimit() {
+        EgaConcurrencyTuner tuner = new EgaConcurrencyTuner(1, 8, true, clock::get);
+        tuner.onResponse(TimeUnit.MILLISECONDS.toNanos(50));
+
+        tuner.onResponse(TimeUnit.MILLISECONDS.toNanos(500));
+        completeRound(tuner, 4, 1000);
+
+        assertEquals(2, tuner.getLimit());
+    }
+
+    @Test
+    public void onComplete_WhenThroughputDrops_ThenHalvesLimitButNotBelowMinimum() {
+        EgaConcurrencyTuner tuner = new EgaConcurrencyTuner(3, 8, true, clock::get);
+        completeRound(tuner, 4, 1000);
+
+        completeRound(tuner, 5, 5000);
+
+        assertEquals(3, tuner.getLimit());
+    }
+
+    @Test
+    public void onComplete_WhenDisabled_ThenKeepsMaximumLimit() {
+        EgaConcurrencyTuner tuner = new EgaConcurrencyTuner(1, 8, false, clock::get);
+
+        tuner.onError();
+        completeRound(tuner, 7, 1000);
+
+        assertEquals(8, tuner.getLimit());
+    }
+
+    @Test
+    public void onThrottle_WhenDisabled_ThenHalvesLimitOnceAndGrowsBack() {
+        EgaConcurrencyTuner tuner = new EgaConcurrencyTuner(1, 8, false, clock::get);
+
+        tuner.onThrottle();
+        tuner.onThrottle();
+        assertEquals(4, tuner.getLimit());
+
+        completeRound(tuner, 2, 1000);
+        assertEquals(4, tuner.getLimit());
+        completeRound(tuner, 4, 1000);
+        assertEquals(5, tuner.getLimit());
+    }
+
+    private void completeRound(EgaConcurrencyTuner tuner, int downloads, long roundMillis) {
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(roundMillis));
+        for (int i = 0; i < downloads; i++) {
+            tuner.onComplete(CHUNK, TimeUnit.MILLISECONDS.toNanos(roundMillis));
+        }
+    }
+}
@@ -19,7 +19,9 @@ package uk.ac.ebi.ega.egafuse.service;
 
 import static okhttp3.mock.Behavior.UNORDERED;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static uk.ac.ebi.ega.egafuse.config.EgaFuseApplicationConfig.isTreeStructureEnable;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -101,10 +103,10 @@ public class EgaDatasetServiceTest {
 
         egaDatasetService.buildSubDirectoryFromFilePath(egaFiles, egaParentdirectory);
 
-        EgaDirectory firstDirectory = (EgaDirectory) egaParentdirectory.contents.get(0);
-        EgaDirectory secondDirectory = (EgaDirectory) firstDirectory.contents.get(0);
-        EgaDirectory thirdDirectory = (EgaDirectory) secondDirectory.contents.get(0);
-        EgaFile file = (EgaFile) thirdDirectory.contents.get(0);
+        EgaDirectory firstDirectory = (EgaDirectory) egaParentdirectory.contents[0];
+        EgaDirectory secondDirectory = (EgaDirectory) firstDirectory.contents[0];
+        EgaDirectory thirdDirectory = (EgaDirectory) secondDirectory.contents[0];
+        EgaFile file = (EgaFile) thirdDirectory.contents[0];
 
         assertEquals(file1.getFilePath().split("/")[0], firstDirectory.getName());
         assertEquals(file1.getFilePath().split("/")[1], secondDirectory.getName());
@@ -134,12 +136,12 @@ public class EgaDatasetServiceTest {
 
         egaDatasetService.buildSubDirectoryFromFilePath(egaFiles, egaParentdirectory);
 
-        EgaDirectory firstDirectory = (EgaDirectory) egaParentdirectory.contents.get(0);
-        EgaDirectory secondDirectory = (EgaDirectory) firstDirectory.contents.get(0);
-        EgaDirectory thirdDirectoryFirstFile = (EgaDirectory) secondDirectory.contents.get(0);
-        EgaDirectory thirdDirectorySecondFile = (EgaDirectory) secondDirectory.contents.get(1);
-        EgaFile fileFirst = (EgaFile) thirdDirectoryFirstFile.contents.get(0);
-        EgaFile fileSecond = (EgaFile) thirdDirectorySecondFile.contents.get(0);
+        EgaDirectory firstDirectory = (EgaDirectory) egaParentdirectory.contents[0];
+        EgaDirectory secondDirectory = (EgaDirectory) firstDirectory.contents[0];
+        EgaDirectory thirdDirectoryFirstFile = (EgaDirectory) secondDirectory.contents[0];
+        EgaDirectory thirdDirectorySecondFile = (EgaDirectory) secondDirectory.contents[1];
+        EgaFile fileFirst = (EgaFile) thirdDirectoryFirstFile.contents[0];
+        EgaFile fileSecond = (EgaFile) thirdDirectorySecondFile.contents[0];
 
         assertEquals(file1.getFilePath().split("/")[0], firstDirectory.getName());
         assertEquals(file1.getFilePath().split("/")[1], secondDirectory.getName());
@@ -185,14 +187,14 @@ public class EgaDatasetServiceTest {
 
         egaDatasetService.buildSubDirectoryFromFilePath(egaFiles, egaParentdirectory);
 
-        EgaDirectory firstDirectory = (EgaDirectory) egaParentdirectory.contents.get(0);  
-        EgaFile firstDirectoryFirstFile = (EgaFile) egaParentdirectory.contents.get(1);      
+        EgaDirectory firstDirectory = (EgaDirectory) egaParentdirectory.contents[0];  
+        EgaFile firstDirectoryFirstFile = (EgaFile) egaParentdirectory.contents[1];      
         
-        EgaFile secondDirectoryFirstFile = (EgaFile) firstDirectory.contents.get(0);
-        EgaFile secondDirectorySecondFile = (EgaFile) firstDirectory.contents.get(1);
-        EgaDirectory secondDirectory = (EgaDirectory) firstDirectory.contents.get(2);
+        EgaFile secondDirectoryFirstFile = (EgaFile) firstDirectory.contents[1];
+        EgaFile secondDirectorySecondFile = (EgaFile) firstDirectory.contents[2];
+        EgaDirectory secondDirectory = (EgaDirectory) firstDirectory.contents[0];
         
-        EgaFile thirdDirectoryFirstFile = (EgaFile) secondDirectory.contents.get(0);
+        EgaFile thirdDirectoryFirstFile = (EgaFile) secondDirectory.contents[0];
 
         assertEquals(file1.getFilePath().split("/")[0], firstDirectory.getName());
         assertEquals(egaFile1.getName(), secondDirectoryFirstFile.getName());
@@ -203,4 +205,134 @@ public class EgaDatasetServiceTest {
         assertEquals(egaFile3.getName(), thirdDirectoryFirstFile.getName());        
         assertEquals(egaFile4.getName(), firstDirectoryFirstFile.getName());
     }
+
+    @Test
+    public void buildFileDirectoryFromFilePath_WhenPathsSharePrefix_ThenKeepsDirectoriesApart() {
+        EgaDirectory egaParentdirectory = new EgaDirectory("directory", egaDatasetService, egaFileService);
+
+        File file1 = new File();
+        file1.setFileId("EGAF01");
+        file1.setFileName("EGAF01.cip");
+        file1.setFilePath("a/b");
+        EgaFile egaFile1 = new EgaFile("EGAF01", file1, null);
+
+        File file2 = new File();
+        file2.setFileId("EGAF02");
+        file2.setFileName("EGAF02.cip");
+        file2.setFilePath("a/bc");
+        EgaFile egaFile2 = new EgaFile("EGAF02", file2, null);
+
+        File file3 = new File();
+        file3.setFileId("EGAF03");
+        file3.setFileName("EGAF03.cip");
+        file3.setFilePath("ab");
+        EgaFile egaFile3 = new EgaFile("EGAF03", file3, null);
+
+        List<EgaFile> egaFiles = new ArrayList<>();
+        egaFiles.add(egaFile1);
+        egaFiles.add(egaFile2);
+        egaFiles.add(egaFile3);
+
+        egaDatasetService.buildSubDirectoryFromFilePath(egaFiles, egaParentdirectory);
+
+        assertEquals(2, egaParentdirectory.contents.length);
+        EgaDirectory firstDirectory = (EgaDirectory) egaParentdirectory.contents[0];
+        EgaDirectory secondDirectory = (EgaDirectory) egaParentdirectory.contents[1];
+        assertEquals(2, firstDirectory.contents.length);
+        EgaDirectory firstSubDirectory = (EgaDirectory) firstDirectory.contents[0];
+        EgaDirectory secondSubDirectory = (EgaDirectory) firstDirectory.contents[1];
+
+        assertEquals("a", firstDirectory.getName());
+        assertEquals("ab", secondDirectory.getName());
+        assertEquals("b", firstSubDirectory.getName());
+        assertEquals("bc", secondSubDirectory.getName());
+        assertEquals(egaFile1.getName(), firstSubDirectory.contents[0].getName());
+        assertEquals(egaFile2.getName(), secondSubDirectory.contents[0].getName());
+        assertEquals(egaFile3.getName(), secondDirectory.contents[0].getName());
+        assertEquals(1, firstSubDirectory.contents.length);
+        assertEquals(1, secondSubDirectory.contents.length);
+        assertEquals(1, secondDirectory.contents.length);
+    }
+
+    @Test
+    public void buildFileDirectoryFromFilePath_WhenFilesHaveSamePath_ThenPutsThemInOneDirectory() {
+        EgaDirectory egaParentdirectory = new EgaDirectory("directory", egaDatasetService, egaFileService);
+
+        File file1 = new File();
+        file1.setFileId("EGAF01");
+        file1.setFileName("EGAF01.cip");
+        file1.setFilePath("A/B");
+        EgaFile egaFile1 = new EgaFile("EGAF01", file1, null);
+
+        File file2 = new File();
+        file2.setFileId("EGAF02");
+        file2.setFileName("EGAF02.cip");
+        file2.setFilePath("A/B");
+        EgaFile egaFile2 = new EgaFile("EGAF02", file2, null);
+
+        File file3 = new File();
+        file3.setFileId("EGAF03");
+        file3.setFileName("EGAF03.cip");
+        file3.setFilePath("A/C");
+        EgaFile egaFile3 = new EgaFile("EGAF03", file3, null);
+
+        File file4 = new File();
+        file4.setFileId("EGAF04");
+        file4.setFileName("EGAF04.cip");
+        file4.setFilePath("A/B/");
+        EgaFile egaFile4 = new EgaFile("EGAF04", file4, null);
+
+        List<EgaFile> egaFiles = new ArrayList<>();
+        egaFiles.add(egaFile1);
+        egaFiles.add(egaFile2);
+        egaFiles.add(egaFile3);
+        egaFiles.add(egaFile4);
+
+        egaDatasetService.buildSubDirectoryFromFilePath(egaFiles, egaParentdirectory);
+
+        assertEquals(1, egaParentdirectory.contents.length);
+        EgaDirectory firstDirectory = (EgaDirectory) egaParentdirectory.contents[0];
+        assertEquals(2, firstDirectory.contents.length);
+        EgaDirectory secondDirectoryFirst = (EgaDirectory) firstDirectory.contents[0];
+        EgaDirectory secondDirectorySecond = (EgaDirectory) firstDirectory.contents[1];
+
+        assertEquals("B", secondDirectoryFirst.getName());
+        assertEquals("C", secondDirectorySecond.getName());
+        assertEquals(3, secondDirectoryFirst.contents.length);
+        assertEquals(egaFile1.getName(), secondDirectoryFirst.contents[0].getName());
+        assertEquals(egaFile2.getName(), secondDirectoryFirst.contents[1].getName());
+        assertEquals(egaFile4.getName(), secondDirectoryFirst.contents[2].getName());
+        assertEquals(1, secondDirectorySecond.contents.length);
+        assertEquals(egaFile3.getName(), secondDirectorySecond.contents[0].getName());
+    }
+
+    @Test
+    public void find_WhenTreeStructureDisabled_ThenListsFilesInDatasetDirectory() {
+        isTreeStructureEnable = false;
+
+        File file1 = new File();
+        file1.setFileId("EGAF01");
+        file1.setFileName("EGAF01.cip");
+        file1.setFilePath("A/B");
+        EgaFile egaFile1 = new EgaFile("EGAF01", file1, null);
+
+        File file2 = new File();
+        file2.setFileId("EGAF02");
+        file2.setFileName("EGAF02.cip");
+        file2.setFilePath("A/C");
+        EgaFile egaFile2 = new EgaFile("EGAF02", file2, null);
+
+        List<EgaFile> egaFiles = new ArrayList<>();
+        egaFiles.add(egaFile2);
+        egaFiles.add(egaFile1);
+        EgaDirectory egaParentdirectory = new EgaDirectory("directory", egaDatasetService, directory -> egaFiles);
+
+        EgaPath egaFile = egaParentdirectory.find("/EGAF01");
+
+        assertEquals(2, egaParentdirectory.contents.length);
+        assertEquals(egaFile1.getName(), egaParentdirectory.contents[0].getName());
+        assertEquals(egaFile2.getName(), egaParentdirectory.contents[1].getName());
+        assertEquals(egaFile1.getName(), egaFile.getName());
+        assertNull(egaParentdirectory.find("/A"));
+    }
 }
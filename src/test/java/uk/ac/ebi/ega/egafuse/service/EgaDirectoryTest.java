@@ -19,11 +19,16 @@ package uk.ac.ebi.ega.egafuse.service;
 
 import static okhttp3.mock.Behavior.UNORDERED;
 import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static uk.ac.ebi.ega.egafuse.config.EgaFuseApplicationConfig.isTreeStructureEnable;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import org.junit.Before;
@@ -87,6 +92,119 @@ public class EgaDirectoryTest {
         assertEquals(path.getName(), egaParentdirectory.getName());
     }
 
+    @Test
+    public void find_WhenGivenNestedPath_ThenReturnsEgaPath() {
+        EgaDirectory dataset = new EgaDirectory("dataset1", egaDatasetService, egaFileService);
+        EgaDirectory subDirectory = new EgaDirectory("A", egaDatasetService, egaFileService);
+        EgaFile egaFile = new EgaFile("test1", new File(), bufferService);
+        subDirectory.add(egaFile);
+        dataset.add(subDirectory);
+        egaParentdirectory.add(dataset);
+
+        assertSame(egaFile, egaParentdirectory.find("/dataset1/A/test1"));
+        assertSame(subDirectory, egaParentdirectory.find("/dataset1/A"));
+        assertSame(egaFile, dataset.find("/A/test1"));
+        assertSame(egaParentdirectory, egaParentdirectory.find("/"));
+        assertNull(egaParentdirectory.find("/dataset1/B"));
+    }
+
+    @Test
+    public void find_WhenNamesSharePrefix_ThenReturnsExactMatch() {
+        EgaDirectory root = new EgaDirectory("root");
+        EgaFile test = new EgaFile("test", new File(), bufferService);
+        EgaFile test1 = new EgaFile("test1", new File(), bufferService);
+        EgaDirectory tes = new EgaDirectory("tes");
+        root.add(test1);
+        root.add(test);
+        root.add(tes);
+
+        assertSame(test, root.find("/test"));
+        assertSame(test1, root.find("/test1"));
+        assertSame(tes, root.find("/tes"));
+        assertNull(root.find("/te"));
+        assertNull(root.find("/test12"));
+        assertNull(root.find("/test/1"));
+    }
+
+    @Test
+    public void find_WhenDirectoryDeleted_ThenReturnsNull() {
+        EgaDirectory root = new EgaDirectory("root");
+        EgaDirectory dataset = new EgaDirectory("dataset1");
+        root.add(dataset);
+        dataset.add(new EgaFile("test1", new File(), bufferService));
+
+        dataset.delete();
+
+        assertNull(root.find("/dataset1"));
+        assertNull(root.find("/dataset1/test1"));
+    }
+
+    @Test
+    public void find_WhenDatasetNotListed_ThenFetchesFilesOnce() {
+        isTreeStructureEnable = false;
+        IEgaFileService fileService = mock(IEgaFileService.class);
+        EgaDirectory dataset = new EgaDirectory("dataset1", egaDatasetService, fileService);
+        File file = new File();
+        file.setFileId("EGAF00001");
+        when(fileService.getFiles(dataset))
+                .thenReturn(Collections.singletonList(new EgaFile("test1", file, bufferService)));
+
+        EgaPath egaFile = dataset.find("/test1");
+
+        assertEquals("test1", egaFile.getName());
+        assertSame(egaFile, dataset.find("/test1"));
+        verify(fileService).getFiles(dataset);
+        assertNull(dataset.find("/test2"));
+    }
+
+    @Test
+    public void find_WhenRefreshedListingUnchanged_ThenKeepsEntries() {
+        isTreeStructureEnable = true;
+        IEgaFileService fileService = mock(IEgaFileService.class);
+        EgaDirectory dataset = new EgaDirectory("dataset1", egaDatasetService, fileService);
+        when(fileService.getFiles(dataset)).thenReturn(
+                Collections.singletonList(new EgaFile("test1", file("EGAF00001", "A"), bufferService)),
+                Collections.singletonList(new EgaFile("test1", file("EGAF00001", "A"), bufferService)));
+        EgaPath subDirectory = dataset.find("/A");
+        EgaPath egaFile = dataset.find("/A/test1");
+
+        assertNull(dataset.find("/test2"));
+
+        assertSame(subDirectory, dataset.find("/A"));
+        assertSame(egaFile, dataset.find("/A/test1"));
+    }
+
+    @Test
+    public void find_WhenRefreshedListingChanged_ThenReplacesEntries() {
+        isTreeStructureEnable = false;
+        IEgaFileService fileService = mock(IEgaFileService.class);
+        EgaDirectory dataset = new EgaDirectory("dataset1", egaDatasetService, fileService);
+        when(fileService.getFiles(dataset)).thenReturn(
+                Collections.singletonList(new EgaFile("test1", file("EGAF00001", "test1"), bufferService)),
+                Collections.singletonList(new EgaFile("test2", file("EGAF00002", "test2"), bufferService)));
+        dataset.find("/test1");
+
+        assertEquals("test2", dataset.find("/test2").getName());
+        assertNull(dataset.find("/test1"));
+    }
+
+    @Test
+    public void read_WhenListingChanged_ThenKeepsLoadedDatasets() {
+        IEgaDatasetService datasetService = mock(IEgaDatasetService.class);
+        EgaDirectory root = new EgaDirectory("Datasets", datasetService, egaFileService);
+        EgaDirectory dataset1 = new EgaDirectory("dataset1", datasetService, egaFileService);
+        when(datasetService.getDatasets()).thenReturn(Collections.singletonList(dataset1),
+                Arrays.asList(new EgaDirectory("dataset1", datasetService, egaFileService),
+                        new EgaDirectory("dataset2", datasetService, egaFileService)));
+
+        root.read(pointer, fuseFillDir);
+        root.read(pointer, fuseFillDir);
+
+        assertEquals(2, root.contents.length);
+        assertSame(dataset1, root.find("/dataset1"));
+        assertEquals("dataset2", root.find("/dataset2").getName());
+    }
+
     @Test
     public void readDatasets_WhenGivenEgaDirectory_ThenReturnsEgaPath() throws JsonProcessingException {
         EgaDirectory directory = new EgaDirectory("dataset1", egaDatasetService, egaFileService);
@@ -100,8 +218,8 @@ public class EgaDirectoryTest {
         
         egaParentdirectory.read(pointer, fuseFillDir);
 
-        List<EgaPath> contents = egaParentdirectory.contents;
-        assertEquals(egaDirectorys.get(0).getName(), contents.get(0).getName());
+        EgaPath[] contents = egaParentdirectory.contents;
+        assertEquals(egaDirectorys.get(0).getName(), contents[0].getName());
     }
 
     @Test
@@ -123,8 +241,8 @@ public class EgaDirectoryTest {
 
         egaParentdirectory.read(pointer, fuseFillDir);
 
-        List<EgaPath> contents = egaParentdirectory.contents;
-        assertEquals(file.getDisplayFileName(), contents.get(0).getName());
+        EgaPath[] contents = egaParentdirectory.contents;
+        assertEquals(file.getDisplayFileName(), contents[0].getName());
     }
 
     @Test
@@ -146,9 +264,9 @@ public class EgaDirectoryTest {
 
         egaParentdirectory.read(pointer, fuseFillDir);
 
-        EgaDirectory firstDirectory = (EgaDirectory) egaParentdirectory.contents.get(0);
-        EgaDirectory secondDirectory = (EgaDirectory) firstDirectory.contents.get(0);
-        EgaFile fileOutput = (EgaFile) secondDirectory.contents.get(0);
+        EgaDirectory firstDirectory = (EgaDirectory) egaParentdirectory.contents[0];
+        EgaDirectory secondDirectory = (EgaDirectory) firstDirectory.contents[0];
+        EgaFile fileOutput = (EgaFile) secondDirectory.contents[0];
 
         assertEquals(file.getFilePath().split("/")[0], firstDirectory.getName());
         assertEquals(file.getFilePath().split("/")[1], secondDirectory.getName());
@@ -195,14 +313,14 @@ public class EgaDirectoryTest {
 
         egaParentdirectory.read(pointer, fuseFillDir);
 
-        EgaDirectory firstDirectory = (EgaDirectory) egaParentdirectory.contents.get(0);  
-        EgaFile firstDirectoryFirstFile = (EgaFile) egaParentdirectory.contents.get(1);      
+        EgaDirectory firstDirectory = (EgaDirectory) egaParentdirectory.contents[0];  
+        EgaFile firstDirectoryFirstFile = (EgaFile) egaParentdirectory.contents[1];      
         
-        EgaFile secondDirectoryFirstFile = (EgaFile) firstDirectory.contents.get(0);
-        EgaFile secondDirectorySecondFile = (EgaFile) firstDirectory.contents.get(1);
-        EgaDirectory secondDirectory = (EgaDirectory) firstDirectory.contents.get(2);
+        EgaFile secondDirectoryFirstFile = (EgaFile) firstDirectory.contents[1];
+        EgaFile secondDirectorySecondFile = (EgaFile) firstDirectory.contents[2];
+        EgaDirectory secondDirectory = (EgaDirectory) firstDirectory.contents[0];
         
-        EgaFile thirdDirectoryFirstFile = (EgaFile) secondDirectory.contents.get(0);
+        EgaFile thirdDirectoryFirstFile = (EgaFile) secondDirectory.contents[0];
 
         assertEquals(file1.getFilePath().split("/")[0], firstDirectory.getName());
         assertEquals(file1.getDisplayFileName(), secondDirectoryFirstFile.getName());
@@ -221,7 +339,14 @@ public class EgaDirectoryTest {
         egaFiles.add(egaFile);
 
         egaParentdirectory.deleteChild(egaFile);
-        List<EgaPath> contents = egaParentdirectory.contents;
-        assertTrue(contents.isEmpty());
+        EgaPath[] contents = egaParentdirectory.contents;
+        assertEquals(0, contents.length);
+    }
+
+    private File file(String fileId, String filePath) {
+        File file = new File();
+        file.setFileId(fileId);
+        file.setFilePath(filePath);
+        return file;
     }
 }
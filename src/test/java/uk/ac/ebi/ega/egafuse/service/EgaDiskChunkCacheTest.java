@@ -0,0 +1,106 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.ac.ebi.ega.egafuse.model.CacheKey;
+
+public class EgaDiskChunkCacheTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path cacheDirectory;
+
+    @Before
+    public void before() throws IOException {
+        cacheDirectory = temporaryFolder.newFolder("diskcache").toPath();
+    }
+
+    @Test
+    public void get_WhenChunkWrittenBeforeRemount_ThenReturnsChunk() throws IOException {
+        byte[] data = "testfiledata".getBytes();
+        CacheKey cacheKey = new CacheKey(0, data.length, "EGAF00001");
+        new EgaDiskChunkCache(cacheDirectory, 1024).put(cacheKey, new HeapEgaChunk(data));
+
+        EgaChunk chunk = new EgaDiskChunkCache(cacheDirectory, 1024).get(cacheKey);
+
+        assertNotNull(chunk);
+        assertArrayEquals(data, chunk.toByteArray());
+    }
+
+    @Test
+    public void get_WhenChunkNotCached_ThenReturnsNull() throws IOException {
+        EgaDiskChunkCache diskChunkCache = new EgaDiskChunkCache(cacheDirectory, 1024);
+
+        assertNull(diskChunkCache.get(new CacheKey(0, 10, "EGAF00001")));
+    }
+
+    @Test
+    public void put_WhenOverBudget_ThenEvictsLeastRecentlyUsedChunk() throws IOException {
+        EgaDiskChunkCache diskChunkCache = new EgaDiskChunkCache(cacheDirectory, 20);
+        CacheKey first = new CacheKey(0, 10, "EGAF00001");
+        CacheKey second = new CacheKey(10, 10, "EGAF00001");
+        CacheKey third = new CacheKey(20, 10, "EGAF00001");
+
+        diskChunkCache.put(first, new HeapEgaChunk(new byte[10]));
+        diskChunkCache.put(second, new HeapEgaChunk(new byte[10]));
+        diskChunkCache.get(first);
+        diskChunkCache.put(third, new HeapEgaChunk(new byte[10]));
+
+        assertNotNull(diskChunkCache.get(first));
+        assertNull(diskChunkCache.get(second));
+        assertNotNull(diskChunkCache.get(third));
+    }
+
+    @Test
+    public void put_WhenFileIdLeavesCacheDirectory_ThenDoesNotCacheChunk() throws IOException {
+        EgaDiskChunkCache diskChunkCache = new EgaDiskChunkCache(cacheDirectory, 1024);
+        CacheKey cacheKey = new CacheKey(0, 10, "../EGAF00001");
+
+        diskChunkCache.put(cacheKey, new HeapEgaChunk(new byte[10]));
+
+        assertFalse(Files.exists(cacheDirectory.resolveSibling("EGAF00001")));
+        assertNull(diskChunkCache.get(cacheKey));
+    }
+
+    @Test
+    public void constructor_WhenInterruptedWriteLeft_ThenDeletesTemporaryFile() throws IOException {
+        File fileDirectory = new File(cacheDirectory.toFile(), "EGAF00001");
+        fileDirectory.mkdirs();
+        Path tempFile = new File(fileDirectory, "0-10.chunk.1234.tmp").toPath();
+        Files.write(tempFile, new byte[5]);
+
+        new EgaDiskChunkCache(cacheDirectory, 1024);
+
+        assertFalse(Files.exists(tempFile));
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.ebi.ega.egafuse.model.CacheKey;
+import uk.ac.ebi.ega.egafuse.service.EgaDownloadScheduler.DownloadTask;
+import uk.ac.ebi.ega.egafuse.service.EgaDownloadScheduler.Priority;
+
+public class EgaDownloadSchedulerTest {
+    private List<String> events;
+
+    @Before
+    public void before() {
+        events = new CopyOnWriteArrayList<>();
+    }
+
+    @Test
+    public void submit_WhenDemandQueuedBehindPrefetch_ThenRunsDemandFirst() throws InterruptedException {
+        EgaDownloadScheduler scheduler = new EgaDownloadScheduler(1, 10, 10);
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(2);
+        scheduler.submit(new DownloadTask(1, Priority.DEMAND, keys(0), () -> await(blocker), () -> {
+        }));
+
+        scheduler.submit(task(1, Priority.PREFETCH, 1, done));
+        scheduler.submit(task(2, Priority.DEMAND, 2, done));
+        blocker.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("download-2", "download-1"), events);
+    }
+
+    @Test
+    public void submit_WhenFileHasItsShareOfConnections_ThenRunsOtherFileFirst() throws InterruptedException {
+        EgaDownloadScheduler scheduler = new EgaDownloadScheduler(2, 1, 10);
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        scheduler.submit(new DownloadTask(1, Priority.DEMAND, keys("EGAF00001", 0), () -> await(blocker), () -> {
+        }));
+        scheduler.submit(new DownloadTask(1, Priority.DEMAND, keys("EGAF00001", 1), () -> events.add("download-1"),
+                () -> {
+                }));
+        scheduler.submit(new DownloadTask(2, Priority.DEMAND, keys("EGAF00002", 2), () -> {
+            events.add("download-2");
+            done.countDown();
+        }, () -> {
+        }));
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("download-2"), events);
+        blocker.countDown();
+    }
+
+    @Test
+    public void submit_WhenFileHasItsShareOfConnectionsInPrefetches_ThenStillRunsItsDemand()
+            throws InterruptedException {
+        EgaDownloadScheduler scheduler = new EgaDownloadScheduler(2, 1, 10);
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        scheduler.submit(new DownloadTask(1, Priority.PREFETCH, keys("EGAF00001", 0), () -> await(blocker), () -> {
+        }));
+
+        scheduler.submit(new DownloadTask(1, Priority.DEMAND, keys("EGAF00001", 1), () -> {
+            events.add("download-1");
+            done.countDown();
+        }, () -> {
+        }));
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("download-1"), events);
+        blocker.countDown();
+    }
+
+    @Test
+    public void submit_WhenNonBlockingDownloadInFlight_ThenHoldsConnectionUntilItCompletes()
+            throws InterruptedException {
+        EgaDownloadScheduler scheduler = new EgaDownloadScheduler(1, 10, 10);
+        CompletableFuture<Void> inFlight = new CompletableFuture<>();
+        CountDownLatch done = new CountDownLatch(1);
+        scheduler.submit(DownloadTask.nonBlocking(1, Priority.DEMAND, keys(0), () -> {
+            events.add("download-0");
+            return inFlight;
+        }, () -> {
+        }, () -> {
+        }));
+        scheduler.submit(task(1, Priority.DEMAND, 1, done));
+
+        assertEquals(Collections.singletonList("download-0"), events);
+        inFlight.complete(null);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("download-0", "download-1"), events);
+    }
+
+    @Test
+    public void submit_WhenPrefetchQueueIsFull_ThenCancelsPrefetch() {
+        EgaDownloadScheduler scheduler = new EgaDownloadScheduler(0, 10, 1);
+
+        scheduler.submit(task(1, Priority.PREFETCH, 1, null));
+        scheduler.submit(task(1, Priority.PREFETCH, 2, null));
+
+        assertEquals(1, scheduler.getQueuedPrefetches());
+        assertEquals(Collections.singletonList("cancel-2"), events);
+    }
+
+    @Test
+    public void cancel_WhenGivenOwner_ThenCancelsOnlyItsQueuedPrefetches() {
+        EgaDownloadScheduler scheduler = new EgaDownloadScheduler(0, 10, 10);
+        scheduler.submit(task(1, Priority.PREFETCH, 1, null));
+        scheduler.submit(task(2, Priority.PREFETCH, 2, null));
+        scheduler.submit(task(1, Priority.DEMAND, 3, null));
+
+        scheduler.cancel(1);
+
+        assertEquals(1, scheduler.getQueuedPrefetches());
+        assertEquals(Collections.singletonList("cancel-1"), events);
+    }
+
+    @Test
+    public void cancel_WhenPrefetchRunning_ThenAbortsIt() throws InterruptedException {
+        EgaDownloadScheduler scheduler = new EgaDownloadScheduler(1, 10, 10);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        scheduler.submit(new DownloadTask(1, Priority.PREFETCH, keys(1), () -> {
+            started.countDown();
+            await(blocker);
+            events.add("download-1");
+            done.countDown();
+        }, () -> events.add("cancel-1"), () -> events.add("abort-1")));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        scheduler.cancel(1);
+        blocker.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("abort-1", "download-1"), events);
+    }
+
+    @Test
+    public void cancel_WhenRunningPrefetchWasPromoted_ThenLetsItFinish() throws InterruptedException {
+        EgaDownloadScheduler scheduler = new EgaDownloadScheduler(1, 10, 10);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        scheduler.submit(new DownloadTask(1, Priority.PREFETCH, keys(1), () -> {
+            started.countDown();
+            await(blocker);
+            events.add("download-1");
+            done.countDown();
+        }, () -> events.add("cancel-1"), () -> events.add("abort-1")));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        scheduler.promote(keys(1).get(0));
+        scheduler.cancel(1);
+        blocker.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("download-1"), events);
+    }
+
+    @Test
+    public void promote_WhenReaderWaitsForPrefetch_ThenPrefetchIsNoLongerCancelled() {
+        EgaDownloadScheduler scheduler = new EgaDownloadScheduler(0, 10, 10);
+        scheduler.submit(task(1, Priority.PREFETCH, 1, null));
+
+        scheduler.promote(keys(1).get(0));
+        scheduler.cancel(1);
+
+        assertEquals(0, scheduler.getQueuedPrefetches());
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void promote_WhenRetryWaitsOutBackoff_ThenRunsItAtOnce() throws InterruptedException {
+        EgaDownloadScheduler scheduler = new EgaDownloadScheduler(1, 10, 10);
+        CountDownLatch done = new CountDownLatch(1);
+        scheduler.submit(task(1, Priority.DEMAND, 1, done), TimeUnit.HOURS.toMillis(1));
+
+        scheduler.promote(keys(1).get(0));
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void cancel_WhenPrefetchWaitsOutBackoff_ThenCancelsIt() {
+        EgaDownloadScheduler scheduler = new EgaDownloadScheduler(1, 10, 10);
+        scheduler.submit(task(1, Priority.PREFETCH, 1, null), TimeUnit.HOURS.toMillis(1));
+
+        scheduler.cancel(1);
+
+        assertEquals(Collections.singletonList("cancel-1"), events);
+    }
+
+    private DownloadTask task(long owner, Priority priority, int chunk, CountDownLatch done) {
+        return new DownloadTask(owner, priority, keys(chunk), () -> {
+            events.add("download-" + chunk);
+            done.countDown();
+        }, () -> events.add("cancel-" + chunk));
+    }
+
+    private List<CacheKey> keys(int chunk) {
+        return keys("fileId", chunk);
+    }
+
+    private List<CacheKey> keys(String fileId, int chunk) {
+        return Collections.singletonList(new CacheKey(chunk * 10l, 10l, fileId));
+    }
+
+    private void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+import ru.serce.jnrfuse.ErrorCodes;
+import ru.serce.jnrfuse.struct.FuseFileInfo;
+import uk.ac.ebi.ega.egafuse.model.File;
+
+public class EgaFuseTest {
+    private IEgaChunkBufferService bufferService;
+    private Pointer pointer;
+    private FuseFileInfo fileInfo;
+    private EgaFuse egaFuse;
+
+    @Before
+    public void before() {
+        bufferService = mock(IEgaChunkBufferService.class);
+        pointer = mock(Pointer.class);
+        fileInfo = new FuseFileInfo(Runtime.getSystemRuntime()) {
+        };
+        File file = new File();
+        file.setFileId("EGAF00001");
+        file.setFileSize(100l);
+        EgaDirectory root = new EgaDirectory("root");
+        EgaDirectory dataset = new EgaDirectory("dataset1");
+        root.add(dataset);
+        dataset.add(new EgaFile("test1", file, bufferService));
+        egaFuse = new EgaFuse(root, "/mnt");
+        when(bufferService.open()).thenReturn(7l);
+        when(bufferService.fillBuffer(any(), anyLong(), eq("EGAF00001"), eq(100l), anyLong(), anyLong()))
+                .thenReturn(10);
+    }
+
+    @Test
+    public void read_WhenPathDeletedAfterOpen_ThenReadsThroughHandle() {
+        egaFuse.open("/dataset1/test1", fileInfo);
+        egaFuse.unlink("/dataset1/test1");
+
+        int bytesRead = egaFuse.read("/dataset1/test1", pointer, 10l, 0l, fileInfo);
+
+        assertEquals(10, bytesRead);
+        assertEquals(-ErrorCodes.ENOENT(), egaFuse.open("/dataset1/test1", fileInfo));
+    }
+
+    @Test
+    public void read_WhenHandleUnknown_ThenReturnsBadFileDescriptor() {
+        fileInfo.fh.set(42l);
+
+        int bytesRead = egaFuse.read("/dataset1/test1", pointer, 10l, 0l, fileInfo);
+
+        assertEquals(-ErrorCodes.EBADF(), bytesRead);
+    }
+
+    @Test
+    public void release_WhenGivenHandle_ThenReleasesFileAndForgetsHandle() {
+        egaFuse.open("/dataset1/test1", fileInfo);
+
+        egaFuse.release("/dataset1/test1", fileInfo);
+
+        verify(bufferService).release(7l);
+        assertEquals(-ErrorCodes.EBADF(), egaFuse.read("/dataset1/test1", pointer, 10l, 0l, fileInfo));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class EgaHedgingPolicyTest {
+
+    @Test
+    public void getHedgeDelayNanos_WhenTooFewSamples_ThenDoesNotHedge() {
+        EgaHedgingPolicy policy = new EgaHedgingPolicy(true, 95, 0.05, 4);
+        policy.onComplete(100, 1000);
+
+        assertEquals(-1, policy.getHedgeDelayNanos(100));
+    }
+
+    @Test
+    public void getHedgeDelayNanos_WhenSamplesRecorded_ThenReturnsPercentileScaledToSize() {
+        EgaHedgingPolicy policy = new EgaHedgingPolicy(true, 95, 0.05, 4);
+        for (int i = 1; i <= 20; i++) {
+            policy.onComplete(100, i * 100);
+        }
+
+        assertEquals(19 * 200, policy.getHedgeDelayNanos(200));
+    }
+
+    @Test
+    public void getHedgeDelayNanos_WhenDisabled_ThenDoesNotHedge() {
+        EgaHedgingPolicy policy = new EgaHedgingPolicy(false, 95, 0.05, 4);
+        for (int i = 1; i <= 20; i++) {
+            policy.onComplete(100, i * 100);
+        }
+
+        assertEquals(-1, policy.getHedgeDelayNanos(100));
+    }
+
+    @Test
+    public void tryAcquire_WhenBudgetIsUsedUp_ThenRefusesHedge() {
+        EgaHedgingPolicy policy = new EgaHedgingPolicy(true, 95, 0.1, 4);
+        policy.onComplete(1000, 1000);
+
+        assertTrue(policy.tryAcquire(60));
+        assertFalse(policy.tryAcquire(60));
+        assertEquals(60, policy.getHedgedBytes());
+    }
+}
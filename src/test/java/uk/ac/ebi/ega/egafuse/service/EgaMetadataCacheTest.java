@@ -0,0 +1,108 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class EgaMetadataCacheTest {
+    private AtomicLong now;
+    private List<Runnable> refreshes;
+    private EgaMetadataCache<String, List<String>> metadataCache;
+    private int fetches;
+
+    @Before
+    public void before() {
+        now = new AtomicLong(1000);
+        refreshes = new ArrayList<>();
+        metadataCache = new EgaMetadataCache<>(100, 10, 40, refreshes::add, now::get);
+    }
+
+    @Test
+    public void get_WhenListingIsFresh_ThenDoesNotFetchAgain() {
+        List<String> listing = metadataCache.get("dataset", this::fetch, Collections.emptyList());
+
+        assertSame(listing, metadataCache.get("dataset", this::fetch, Collections.emptyList()));
+        assertEquals(1, fetches);
+    }
+
+    @Test
+    public void get_WhenListingIsStale_ThenReturnsItAndRefreshesInBackground() {
+        List<String> listing = metadataCache.get("dataset", this::fetch, Collections.emptyList());
+        now.addAndGet(100);
+
+        assertSame(listing, metadataCache.get("dataset", this::fetch, Collections.emptyList()));
+        assertSame(listing, metadataCache.get("dataset", this::fetch, Collections.emptyList()));
+        assertEquals(1, refreshes.size());
+
+        refreshes.get(0).run();
+
+        assertEquals(Arrays.asList("file2"), metadataCache.get("dataset", this::fetch, Collections.emptyList()));
+    }
+
+    @Test
+    public void get_WhenListingWasRestored_ThenReturnsItAndRefreshesInBackground() {
+        List<String> restored = Collections.singletonList("restored");
+        metadataCache.seed("dataset", restored);
+
+        assertSame(restored, metadataCache.get("dataset", this::fetch, Collections.emptyList()));
+        assertEquals(0, fetches);
+        assertEquals(1, refreshes.size());
+
+        refreshes.get(0).run();
+
+        assertEquals(Arrays.asList("file1"), metadataCache.get("dataset", this::fetch, Collections.emptyList()));
+        assertEquals(1, refreshes.size());
+    }
+
+    @Test
+    public void get_WhenFetchFails_ThenReturnsFallbackUntilBackoffPassed() {
+        List<String> fallback = Collections.emptyList();
+        EgaMetadataCache.Fetcher<String, List<String>> failing = key -> {
+            fetches++;
+            throw new IOException("unavailable");
+        };
+
+        assertSame(fallback, metadataCache.get("dataset", failing, fallback));
+        assertSame(fallback, metadataCache.get("dataset", failing, fallback));
+        assertEquals(1, fetches);
+
+        now.addAndGet(10);
+        metadataCache.get("dataset", failing, fallback);
+        assertEquals(2, fetches);
+
+        now.addAndGet(10);
+        metadataCache.get("dataset", failing, fallback);
+        assertEquals(2, fetches);
+    }
+
+    private List<String> fetch(String key) {
+        fetches++;
+        return Collections.singletonList("file" + fetches);
+    }
+}
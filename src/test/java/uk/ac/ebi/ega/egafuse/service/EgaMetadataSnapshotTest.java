@@ -0,0 +1,95 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.ac.ebi.ega.egafuse.model.File;
+
+public class EgaMetadataSnapshotTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path snapshotPath;
+
+    @Before
+    public void before() throws IOException {
+        snapshotPath = temporaryFolder.newFolder("metadata").toPath().resolve("snapshot");
+    }
+
+    @Test
+    public void load_WhenSavedBeforeRemount_ThenReturnsListings() throws IOException {
+        Map<String, List<File>> datasets = new LinkedHashMap<>();
+        datasets.put("EGAD00001",
+                Arrays.asList(file("EGAF00001", "dir/a.bam", 100l), file("EGAF00002", "dir/b.bam", 200l)));
+        datasets.put("EGAD00002", null);
+        new EgaMetadataSnapshot(snapshotPath).save(datasets);
+
+        Map<String, List<File>> loaded = new EgaMetadataSnapshot(snapshotPath).load();
+
+        assertEquals(Arrays.asList("EGAD00001", "EGAD00002"), Arrays.asList(loaded.keySet().toArray()));
+        assertNull(loaded.get("EGAD00002"));
+        List<File> files = loaded.get("EGAD00001");
+        assertEquals(2, files.size());
+        assertEquals("EGAF00002", files.get(1).getFileId());
+        assertEquals("EGAD00001", files.get(1).getDatasetId());
+        assertEquals("dir/b.bam", files.get(1).getDisplayFileName());
+        assertEquals("SHA256", files.get(1).getUnencryptedChecksumType());
+        assertNull(files.get(1).getUnencryptedChecksum());
+        assertEquals(200l, files.get(1).getFileSize());
+    }
+
+    @Test
+    public void load_WhenSnapshotMissing_ThenReturnsNoDatasets() {
+        assertTrue(new EgaMetadataSnapshot(snapshotPath).load().isEmpty());
+    }
+
+    @Test
+    public void load_WhenSnapshotCorrupt_ThenReturnsNoDatasets() throws IOException {
+        Files.write(snapshotPath, "not a snapshot".getBytes());
+
+        assertTrue(new EgaMetadataSnapshot(snapshotPath).load().isEmpty());
+    }
+
+    private File file(String fileId, String displayFileName, long fileSize) {
+        File file = new File();
+        file.setFileId(fileId);
+        file.setDatasetId("EGAD00001");
+        file.setDisplayFileName(displayFileName);
+        file.setFileName(displayFileName + ".cip");
+        file.setFileStatus("available");
+        file.setUnencryptedChecksumType("SHA256");
+        file.setFileSize(fileSize);
+        return file;
+    }
+}
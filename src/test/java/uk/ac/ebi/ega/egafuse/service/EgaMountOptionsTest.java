@@ -0,0 +1,43 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+public class EgaMountOptionsTest {
+
+    @Test
+    public void toArgs_WhenGivenDefaults_ThenCachesInKernel() {
+        EgaMountOptions mountOptions = new EgaMountOptions(3600, 3600, 60, true, 0, 1048576, "");
+
+        assertArrayEquals(new String[] { "-o",
+                "allow_other,attr_timeout=3600,entry_timeout=3600,negative_timeout=60,kernel_cache,max_readahead=1048576" },
+                mountOptions.toArgs());
+    }
+
+    @Test
+    public void toArgs_WhenGivenExtraOptions_ThenAppendsThemLast() {
+        EgaMountOptions mountOptions = new EgaMountOptions(0.5, 1, 0, false, 131072, 0, "attr_timeout=60");
+
+        assertArrayEquals(new String[] { "-o",
+                "allow_other,attr_timeout=0.5,entry_timeout=1,negative_timeout=0,max_read=131072,attr_timeout=60" },
+                mountOptions.toArgs());
+    }
+}
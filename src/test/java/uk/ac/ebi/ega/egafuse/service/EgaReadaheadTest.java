@@ -0,0 +1,73 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class EgaReadaheadTest {
+    private static final long CHUNK_SIZE = 10;
+    private static final long FILE_SIZE = 1000;
+    private EgaReadahead readahead;
+    private List<Integer> prefetched;
+
+    @Before
+    public void before() {
+        readahead = new EgaReadahead(CHUNK_SIZE, 4);
+        prefetched = new ArrayList<>();
+    }
+
+    @Test
+    public void onRead_WhenReadingSequentially_ThenGrowsWindowUpToMax() {
+        for (long offset = 0; offset < 60; offset += 5) {
+            readahead.onRead(offset, 5, FILE_SIZE, prefetched::add);
+        }
+
+        assertEquals(4, readahead.getWindow());
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9), prefetched);
+    }
+
+    @Test
+    public void onRead_WhenSeekingAway_ThenCollapsesWindow() {
+        for (long offset = 0; offset < 40; offset += 5) {
+            readahead.onRead(offset, 5, FILE_SIZE, prefetched::add);
+        }
+        prefetched.clear();
+
+        readahead.onRead(500, 5, FILE_SIZE, prefetched::add);
+
+        assertEquals(0, readahead.getWindow());
+        assertTrue(prefetched.isEmpty());
+    }
+
+    @Test
+    public void onRead_WhenNearEndOfFile_ThenDoesNotPrefetchPastLastChunk() {
+        for (long offset = 960; offset < FILE_SIZE; offset += 5) {
+            readahead.onRead(offset, 5, FILE_SIZE, prefetched::add);
+        }
+
+        assertTrue(prefetched.stream().allMatch(chunk -> chunk <= 99));
+    }
+}
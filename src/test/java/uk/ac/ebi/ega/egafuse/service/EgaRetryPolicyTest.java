@@ -0,0 +1,93 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class EgaRetryPolicyTest {
+
+    @Test
+    public void getBackoffMillis_WhenAttemptsGrow_ThenDoublesUpToMaximum() {
+        EgaRetryPolicy retryPolicy = new EgaRetryPolicy(6, 500, 3000, 10, 1, () -> 1.0, () -> 0);
+
+        assertEquals(500, retryPolicy.getBackoffMillis(1));
+        assertEquals(1000, retryPolicy.getBackoffMillis(2));
+        assertEquals(2000, retryPolicy.getBackoffMillis(3));
+        assertEquals(3000, retryPolicy.getBackoffMillis(4));
+    }
+
+    @Test
+    public void getBackoffMillis_WhenJittered_ThenWaitsFractionOfBackoff() {
+        EgaRetryPolicy retryPolicy = new EgaRetryPolicy(6, 500, 3000, 10, 1, () -> 0.5, () -> 0);
+
+        assertEquals(500, retryPolicy.getBackoffMillis(2));
+    }
+
+    @Test
+    public void canRetry_WhenMaxAttemptsReached_ThenReturnsFalse() {
+        EgaRetryPolicy retryPolicy = new EgaRetryPolicy(3, 500, 3000, 10, 1);
+        retryPolicy.onFailure();
+
+        assertTrue(retryPolicy.canRetry(2));
+        assertFalse(retryPolicy.canRetry(3));
+    }
+
+    @Test
+    public void canRetry_WhenShortBurstOfFailures_ThenKeepsRetrying() {
+        EgaRetryPolicy retryPolicy = new EgaRetryPolicy(6, 500, 3000, 10, 1, () -> 1.0, () -> 0);
+        for (int i = 0; i < 5; i++) {
+            retryPolicy.onFailure();
+        }
+
+        assertTrue(retryPolicy.canRetry(1));
+    }
+
+    @Test
+    public void canRetry_WhenBudgetIsUsedUp_ThenStopsRetryingUntilDownloadsSucceed() {
+        EgaRetryPolicy retryPolicy = new EgaRetryPolicy(6, 500, 3000, 10, 1, () -> 1.0, () -> 0);
+        for (int i = 0; i < 10; i++) {
+            retryPolicy.onFailure();
+        }
+        assertFalse(retryPolicy.canRetry(1));
+
+        for (int i = 0; i < 20; i++) {
+            retryPolicy.onSuccess();
+        }
+        assertTrue(retryPolicy.canRetry(1));
+    }
+
+    @Test
+    public void canRetry_WhenBudgetIsUsedUp_ThenRefillsOverTime() {
+        AtomicLong nanos = new AtomicLong();
+        EgaRetryPolicy retryPolicy = new EgaRetryPolicy(6, 500, 3000, 10, 2, () -> 1.0, nanos::get);
+        for (int i = 0; i < 10; i++) {
+            retryPolicy.onFailure();
+        }
+        assertFalse(retryPolicy.canRetry(1));
+
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        assertTrue(retryPolicy.canRetry(1));
+    }
+}
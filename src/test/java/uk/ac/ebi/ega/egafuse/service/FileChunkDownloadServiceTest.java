@@ -19,11 +19,32 @@ package uk.ac.ebi.ega.egafuse.service;
 
 import static okhttp3.mock.Behavior.UNORDERED;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
-
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.asynchttpclient.AsyncHandler;
+import org.asynchttpclient.AsyncHttpClient;
+import org.asynchttpclient.BoundRequestBuilder;
+import org.asynchttpclient.HttpResponseBodyPart;
+import org.asynchttpclient.HttpResponseStatus;
+import org.asynchttpclient.ListenableFuture;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.springframework.beans.factory.annotation.Value;
@@ -55,11 +76,11 @@ public class FileChunkDownloadServiceTest {
     public void before() {
         interceptor = new MockInterceptor(UNORDERED);
         client = new OkHttpClient.Builder().addInterceptor(interceptor).build();
-        fileChunkDownloadService = new FileChunkDownloadService(client, APP_URL, token);
+        fileChunkDownloadService = new FileChunkDownloadService(client, APP_URL, token, new EgaConcurrencyTuner(1, 1, false));
     }
 
     @Test
-    public void downloadChunk_WhenGivenCacheKey_ThenReturnsFileBytes() throws ClientProtocolException, IOException {
+    public void downloadChunks_WhenGivenCacheKey_ThenFillsChunkWithFileBytes() throws ClientProtocolException, IOException {
         byte[] file = "testfiledata".getBytes();
         CacheKey cacheKey = new CacheKey(0, file.length, "EGAF00001");
 
@@ -69,12 +90,67 @@ public class FileChunkDownloadServiceTest {
 
         interceptor.addRule().get(url).respond(file);
 
-        byte[] chunk = fileChunkDownloadService.downloadChunk(cacheKey);
-        assertArrayEquals(file, chunk);
+        EgaChunk chunk = EgaChunk.allocate(file.length, false);
+        fileChunkDownloadService.downloadChunks(Collections.singletonList(cacheKey), Collections.singletonList(chunk));
+        assertTrue(chunk.isComplete());
+        assertArrayEquals(file, chunk.toByteArray());
+    }
+
+    @Test
+    public void downloadChunks_WhenGivenAdjacentCacheKeys_ThenFillsEveryChunkFromOneRequest()
+            throws ClientProtocolException, IOException {
+        byte[] file = "testfiledata".getBytes();
+        CacheKey firstKey = new CacheKey(0, 8, "EGAF00001");
+        CacheKey secondKey = new CacheKey(8, 4, "EGAF00001");
+
+        String url = APP_URL.trim() + "/files/" + firstKey.getFileId()
+                + "?destinationFormat=plain&startCoordinate=0&endCoordinate=12";
+
+        interceptor.addRule().get(url).respond(file);
+
+        EgaChunk firstChunk = EgaChunk.allocate(8, false);
+        EgaChunk secondChunk = EgaChunk.allocate(4, false);
+        fileChunkDownloadService.downloadChunks(Arrays.asList(firstKey, secondKey),
+                Arrays.asList(firstChunk, secondChunk));
+        assertArrayEquals("testfile".getBytes(), firstChunk.toByteArray());
+        assertArrayEquals("data".getBytes(), secondChunk.toByteArray());
+    }
+
+    @Test
+    public void downloadChunks_WhenChunkIsPartlyFilled_ThenRequestsOnlyMissingBytes()
+            throws ClientProtocolException, IOException {
+        byte[] file = "testfiledata".getBytes();
+        CacheKey firstKey = new CacheKey(0, 8, "EGAF00001");
+        CacheKey secondKey = new CacheKey(8, 4, "EGAF00001");
+        EgaChunk firstChunk = EgaChunk.allocate(8, false);
+        EgaChunk secondChunk = EgaChunk.allocate(4, false);
+        try {
+            firstChunk.fill(new ByteArrayInputStream(file, 0, 5));
+        } catch (EOFException e) {
+            // the previous attempt broke off after five bytes
+        }
+
+        String url = APP_URL.trim() + "/files/" + firstKey.getFileId()
+                + "?destinationFormat=plain&startCoordinate=5&endCoordinate=12";
+
+        interceptor.addRule().get(url).respond(Arrays.copyOfRange(file, 5, 12));
+
+        fileChunkDownloadService.downloadChunks(Arrays.asList(firstKey, secondKey),
+                Arrays.asList(firstChunk, secondChunk));
+        assertArrayEquals("testfile".getBytes(), firstChunk.toByteArray());
+        assertArrayEquals("data".getBytes(), secondChunk.toByteArray());
+    }
+
+    @Test
+    public void parseRetryAfterMillis_WhenGivenSecondsOrDate_ThenReturnsDelay() {
+        assertEquals(120000, FileChunkDownloadService.parseRetryAfterMillis("120", 0));
+        assertEquals(5000, FileChunkDownloadService.parseRetryAfterMillis("Thu, 01 Jan 1970 00:00:10 GMT", 5000));
+        assertEquals(-1, FileChunkDownloadService.parseRetryAfterMillis(null, 0));
+        assertEquals(-1, FileChunkDownloadService.parseRetryAfterMillis("soon", 0));
     }
 
     @Test(expected = ClientProtocolException.class)
-    public void downloadChunk_WhenGivenExceptionByAppUrl_ThenThrowsException() throws IOException, ClientProtocolException {
+    public void downloadChunks_WhenGivenExceptionByAppUrl_ThenThrowsException() throws IOException, ClientProtocolException {
         CacheKey cacheKey = new CacheKey(0, 12, "EGAF00001");
 
         String url = APP_URL.trim() + "/files/" + cacheKey.getFileId() + "?destinationFormat=plain&startCoordinate="
@@ -83,6 +159,78 @@ public class FileChunkDownloadServiceTest {
 
         interceptor.addRule().get(url).respond(500);
 
-        fileChunkDownloadService.downloadChunk(cacheKey);
+        fileChunkDownloadService.downloadChunks(Collections.singletonList(cacheKey),
+                Collections.singletonList(EgaChunk.allocate(12, false)));
+    }
+
+    @Test
+    public void downloadChunksAsync_WhenResponseArrivesInParts_ThenFillsEveryChunk() throws Exception {
+        CacheKey firstKey = new CacheKey(0, 8, "EGAF00001");
+        CacheKey secondKey = new CacheKey(8, 4, "EGAF00001");
+        String url = APP_URL.trim() + "/files/" + firstKey.getFileId()
+                + "?destinationFormat=plain&startCoordinate=0&endCoordinate=12";
+        AtomicReference<AsyncHandler<Void>> handler = new AtomicReference<>();
+        IFileChunkDownloadService asyncService = asyncService(url, handler);
+
+        EgaChunk firstChunk = EgaChunk.allocate(8, false);
+        EgaChunk secondChunk = EgaChunk.allocate(4, false);
+        CompletableFuture<Void> download = asyncService.downloadChunksAsync(Arrays.asList(firstKey, secondKey),
+                Arrays.asList(firstChunk, secondChunk), canceller -> {
+                });
+        handler.get().onStatusReceived(status(206));
+        handler.get().onBodyPartReceived(bodyPart("testf".getBytes()));
+        handler.get().onBodyPartReceived(bodyPart("iledata".getBytes()));
+        handler.get().onCompleted();
+
+        download.get();
+        assertArrayEquals("testfile".getBytes(), firstChunk.toByteArray());
+        assertArrayEquals("data".getBytes(), secondChunk.toByteArray());
+    }
+
+    @Test
+    public void downloadChunksAsync_WhenGivenExceptionByAppUrl_ThenFutureFails() throws Exception {
+        CacheKey cacheKey = new CacheKey(0, 12, "EGAF00001");
+        String url = APP_URL.trim() + "/files/" + cacheKey.getFileId()
+                + "?destinationFormat=plain&startCoordinate=0&endCoordinate=12";
+        AtomicReference<AsyncHandler<Void>> handler = new AtomicReference<>();
+        IFileChunkDownloadService asyncService = asyncService(url, handler);
+
+        CompletableFuture<Void> download = asyncService.downloadChunksAsync(Collections.singletonList(cacheKey),
+                Collections.singletonList(EgaChunk.allocate(12, false)), canceller -> {
+                });
+        handler.get().onStatusReceived(status(500));
+        handler.get().onBodyPartReceived(bodyPart("error".getBytes()));
+        handler.get().onCompleted();
+
+        ExecutionException e = assertThrows(ExecutionException.class, download::get);
+        assertTrue(e.getCause() instanceof ClientProtocolException);
+    }
+
+    @SuppressWarnings("unchecked")
+    private IFileChunkDownloadService asyncService(String url, AtomicReference<AsyncHandler<Void>> handler) {
+        AsyncHttpClient asyncClient = mock(AsyncHttpClient.class);
+        BoundRequestBuilder requestBuilder = mock(BoundRequestBuilder.class);
+        when(asyncClient.prepareGet(url)).thenReturn(requestBuilder);
+        when(requestBuilder.addHeader(anyString(), any())).thenReturn(requestBuilder);
+        when(requestBuilder.execute(any(AsyncHandler.class))).thenAnswer(invocation -> {
+            handler.set(invocation.getArgument(0));
+            return mock(ListenableFuture.class);
+        });
+        return new FileChunkDownloadService(client, asyncClient, APP_URL, token, new EgaConcurrencyTuner(1, 1, false),
+                new EgaCircuitBreaker(Integer.MAX_VALUE, 0), new EgaHedgingPolicy(false, 0, 0, 1));
+    }
+
+    private static HttpResponseStatus status(int code) {
+        HttpResponseStatus status = mock(HttpResponseStatus.class);
+        when(status.getStatusCode()).thenReturn(code);
+        return status;
+    }
+
+    private static HttpResponseBodyPart bodyPart(byte[] bytes) {
+        HttpResponseBodyPart bodyPart = mock(HttpResponseBodyPart.class);
+        when(bodyPart.getBodyByteBuffer()).thenReturn(ByteBuffer.wrap(bytes));
+        when(bodyPart.getBodyPartBytes()).thenReturn(bytes);
+        when(bodyPart.length()).thenReturn(bytes.length);
+        return bodyPart;
     }
 }
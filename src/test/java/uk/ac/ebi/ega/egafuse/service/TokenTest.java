@@ -0,0 +1,126 @@
+/*
+ *
+ * Copyright 2020 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package uk.ac.ebi.ega.egafuse.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.json.Json;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+
+public class TokenTest {
+    private static final String AAI_URL = "https://aai.example.org";
+    private AtomicInteger tokenRequests;
+    private List<MockLowLevelHttpRequest> requests;
+    private long expiresIn;
+
+    private MockHttpTransport transport = new MockHttpTransport() {
+        @Override
+        public LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+            int requestNumber = tokenRequests.incrementAndGet();
+            MockLowLevelHttpResponse response = new MockLowLevelHttpResponse().setContentType(Json.MEDIA_TYPE)
+                    .setContent("{\"access_token\":\"token-" + requestNumber + "\",\"refresh_token\":\"refresh-"
+                            + requestNumber + "\",\"expires_in\":" + expiresIn + "}");
+            MockLowLevelHttpRequest request = new MockLowLevelHttpRequest(url).setResponse(response);
+            requests.add(request);
+            return request;
+        }
+    };
+
+    @Before
+    public void before() {
+        tokenRequests = new AtomicInteger();
+        requests = new CopyOnWriteArrayList<>();
+        expiresIn = 3600;
+    }
+
+    @Test
+    public void getBearerToken_WhenCalledTwice_ThenRequestsTokenOnce() throws IOException {
+        Token token = newToken();
+
+        assertEquals("token-1", token.getBearerToken());
+        assertEquals("token-1", token.getBearerToken());
+        assertEquals(1, tokenRequests.get());
+    }
+
+    @Test
+    public void getBearerToken_WhenTokenIsDue_ThenUsesRefreshTokenGrant() throws IOException {
+        expiresIn = 0;
+        Token token = newToken();
+
+        assertEquals("token-1", token.getBearerToken());
+        assertNotEquals("token-1", token.getBearerToken());
+
+        assertTrue(requests.get(0).getContentAsString().contains("grant_type=password"));
+        assertTrue(requests.get(1).getContentAsString().contains("grant_type=refresh_token"));
+    }
+
+    @Test
+    public void getBearerToken_WhenTokenIsDueAtOnce_ThenDoesNotRefreshInBackground()
+            throws IOException, InterruptedException {
+        expiresIn = 1;
+        Token token = newToken();
+
+        token.getBearerToken();
+        Thread.sleep(200);
+
+        assertEquals(1, tokenRequests.get());
+    }
+
+    @Test
+    public void getBearerToken_WhenCalledConcurrently_ThenRequestsTokenOnce() throws Exception {
+        Token token = newToken();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Callable<String>> calls = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            calls.add(token::getBearerToken);
+        }
+
+        try {
+            for (Future<String> bearerToken : executor.invokeAll(calls)) {
+                assertEquals("token-1", bearerToken.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, tokenRequests.get());
+    }
+
+    private Token newToken() {
+        return new Token(transport, new JacksonFactory(), "user", "pass", "clientId", "clientSecret", "password",
+                AAI_URL, 60);
+    }
+}